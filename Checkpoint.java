@@ -0,0 +1,136 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A copy of the whole world as of one point in the op journal, so a restart only has to replay the ops after it
+ *
+ * The file holds a header (magic, the sequence number of the first op not in it, the last ID handed out,
+ * how many shapes) and then each shape as the OpCodec frame of the "add" that would make it, followed by
+ * a CRC32 of everything before it. It is written to a temporary file and renamed into place, so a crash
+ * mid-write leaves the previous checkpoint as the latest.
+ */
+public class Checkpoint {
+	private static final int MAGIC = 0x534B4350;		// "SKCP"
+	private static final String PREFIX = "checkpoint-", SUFFIX = ".bin";
+
+	public final long seq;						// the sequence number of the first journal op not in this checkpoint
+	public final int currID;					// the last ID handed out when it was taken
+	public final int count;						// how many shapes
+	public final Iterable<String> shapes;		// each shape as "<ID> <shapeString>" (gone through once)
+
+	public Checkpoint(long seq, int currID, int count, Iterable<String> shapes) {
+		this.seq = seq;
+		this.currID = currID;
+		this.count = count;
+		this.shapes = shapes;
+	}
+
+	/**
+	 * The "add" message for each shape, with its ID on the end as the server broadcasts it
+	 */
+	public static String addMessage(String shape) {
+		int space = shape.indexOf(' ');
+		return "add " + shape.substring(space + 1) + " " + shape.substring(0, space);
+	}
+
+	/**
+	 * Writes the checkpoint into the directory, forced to disk, then removes any older ones
+	 * @return how many bytes it took
+	 */
+	public long write(File dir) throws IOException {
+		Path path = dir.toPath().resolve(String.format(PREFIX + "%020d" + SUFFIX, seq));
+		Path temp = dir.toPath().resolve(path.getFileName() + ".tmp");
+
+		try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+			CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32());
+			DataOutputStream out = new DataOutputStream(checked);
+			out.writeInt(MAGIC);
+			out.writeLong(seq);
+			out.writeInt(currID);
+			out.writeInt(count);
+			for (String shape : shapes) {
+				out.write(OpCodec.encode(addMessage(shape)));
+			}
+			out.writeInt((int) checked.getChecksum().getValue());
+			out.flush();
+			file.getFD().sync();
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		// the older ones aren't needed any more
+		for (Path old : list(dir)) {
+			if (!old.equals(path)) {
+				Files.deleteIfExists(old);
+			}
+		}
+		return Files.size(path);
+	}
+
+	/**
+	 * Reads the newest checkpoint in the directory that is whole
+	 * @return the checkpoint, or null if there is none
+	 */
+	public static Checkpoint latest(File dir) throws IOException {
+		ArrayList<Path> paths = list(dir);
+		for (int i = paths.size() - 1; i >= 0; i--) {
+			Checkpoint checkpoint = read(paths.get(i));
+			if (checkpoint != null) {
+				return checkpoint;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads one checkpoint file
+	 * @return the checkpoint, or null if it is damaged
+	 */
+	private static Checkpoint read(Path path) throws IOException {
+		try (InputStream file = new BufferedInputStream(Files.newInputStream(path), 1 << 16)) {
+			CheckedInputStream checked = new CheckedInputStream(file, new CRC32());
+			DataInputStream in = new DataInputStream(checked);
+			if (in.readInt() != MAGIC) {
+				return null;
+			}
+			long seq = in.readLong();
+			int currID = in.readInt();
+			int count = in.readInt();
+
+			ArrayList<String> shapes = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				// back from the add message to "<ID> <shapeString>"
+				String add = OpCodec.readMessage(in);
+				int space = add.lastIndexOf(' ');
+				shapes.add(add.substring(space + 1) + " " + add.substring("add ".length(), space));
+			}
+
+			int expected = (int) checked.getChecksum().getValue();
+			if (in.readInt() != expected) {
+				return null;
+			}
+			return new Checkpoint(seq, currID, count, shapes);
+		}
+		catch (IOException | RuntimeException e) {
+			System.err.println("skipping damaged checkpoint " + path + ": " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * The checkpoint files in the directory, oldest first
+	 */
+	private static ArrayList<Path> list(File dir) throws IOException {
+		ArrayList<Path> paths = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir.toPath(), PREFIX + "*" + SUFFIX)) {
+			for (Path path : files) {
+				paths.add(path);
+			}
+		}
+		paths.sort(null);
+		return paths;
+	}
+}
@@ -0,0 +1,42 @@
+/**
+ * An op from a client that applies its own ops right away (an "optimistic" client), on its way to the sequencer
+ *
+ * Such a client asks with the OPTIMISTIC line, and the server answers with the same line. From then on
+ * it shows each of its ops as soon as it makes it, and keeps them until the server says where they fell
+ * among everyone else's: the sequencer leaves the client out of the broadcast of its own op and sends it
+ * "ack <number>" instead, once the op is applied, with the op's number among all the messages the client
+ * has sent, and the sequence number of the newest op broadcast by then (see OpTail), as "ack <number> <seq>".
+ * Everything the client sent up to that number is then in the world, in that place, just as sent.
+ * "nack <number>" says the op was not taken as sent (an ID that wasn't the client's to use), or not at all
+ * (one the world wouldn't take), so the client takes it back; the server's version of it, if any, comes in
+ * the broadcast like anyone else's.
+ */
+public class ClientOp {
+	public static final String OPTIMISTIC = "protocol optimistic";		// the request for, and answer agreeing to, acks instead of echoes
+	public static final String ACK = "ack", NACK = "nack";
+
+	public final String line;				// the op
+	public final SketchClient client;		// who sent it
+	public final long number;				// its number among all the messages that client has sent
+
+	public ClientOp(String line, SketchClient client, long number) {
+		this.line = line;
+		this.client = client;
+		this.number = number;
+	}
+
+	/**
+	 * Lets the client know its messages up to and including this one are applied
+	 * @param seq the sequence number of the newest op broadcast
+	 */
+	public void ack(long seq) {
+		client.send(ACK + " " + number + " " + seq);
+	}
+
+	/**
+	 * Lets the client know this op was not taken as sent
+	 */
+	public void nack() {
+		client.send(NACK + " " + number);
+	}
+}
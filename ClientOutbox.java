@@ -0,0 +1,177 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Messages from a client waiting to go to the server, written by a background thread
+ * so the Swing thread never waits on the socket
+ *
+ * Moves of the same shape are added together until they are written, and the sender writes
+ * (and flushes) at most once per display frame, so a drag costs one packet per frame instead of
+ * one per mouse event.
+ *
+ * Each message gets a number as it is queued, counting from 1 in the order they go out
+ * (a move added to another shares its number), the same way the server counts what it receives.
+ *
+ * If a write fails, the outbox keeps the error (see getFailure) and closes the stream, which hangs up
+ * the socket, so the owner's reading thread sees the connection end and can connect again or give up.
+ * Messages queued after that are dropped.
+ */
+public class ClientOutbox extends Thread {
+	public static final long FRAME_MILLIS = 16;		// at most one write per this long (about 60 per second)
+
+	private OutputStream out;					// to server
+	private volatile boolean binary = false;	// whether to write binary frames (see OpCodec)
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition waiting = lock.newCondition();		// signalled when there is something to write
+	private ArrayList<String> outbox = new ArrayList<>();		// messages in the order they were sent
+	private int moveID = -1, moveDx, moveDy;					// a move still being added to (not yet in outbox)
+	private long moveNumber;									// and its number
+	private long numbered = 0;									// how many messages have been numbered
+	private volatile IOException failure;						// why writing stopped, or null if it hasn't
+
+	public ClientOutbox(OutputStream out) {
+		super("client-outbox");
+		this.out = out;
+		setDaemon(true);
+	}
+
+	/**
+	 * @param binary whether the server has agreed to binary frames
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+
+	/**
+	 * The error that stopped the outbox writing, or null if it hasn't
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Queues a message for the server (or drops it, if writing has failed)
+	 * @return its number
+	 */
+	public long send(String msg) {
+		lock.lock();
+		try {
+			if (failure != null) {
+				return ++numbered;
+			}
+			// keep the order: any move so far goes first
+			queueMove();
+			outbox.add(msg);
+			waiting.signal();
+			return ++numbered;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queues a move, adding it to the move before it if that was of the same shape and hasn't been written yet
+	 * @return the number of the message it goes in
+	 */
+	public long sendMove(int id, int dx, int dy) {
+		lock.lock();
+		try {
+			if (failure != null) {
+				return ++numbered;
+			}
+			if (moveID == id) {
+				moveDx += dx;
+				moveDy += dy;
+			}
+			else {
+				queueMove();
+				moveID = id;
+				moveDx = dx;
+				moveDy = dy;
+				moveNumber = ++numbered;
+			}
+			waiting.signal();
+			return moveNumber;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Puts the move being added to into the outbox (call with the lock held)
+	 */
+	private void queueMove() {
+		if (moveID != -1) {
+			outbox.add("move " + moveID + " " + moveDx + " " + moveDy);
+			moveID = -1;
+		}
+	}
+
+	/**
+	 * Writes everything queued, then waits for the next frame before writing again
+	 */
+	public void run() {
+		ArrayList<String> batch = new ArrayList<>();
+		try {
+			while (true) {
+				lock.lock();
+				try {
+					while (outbox.isEmpty() && moveID == -1) {
+						waiting.await();
+					}
+					queueMove();
+
+					// swap lists so senders can keep queueing while we write
+					ArrayList<String> queued = outbox;
+					outbox = batch;
+					batch = queued;
+				}
+				finally {
+					lock.unlock();
+				}
+
+				for (String msg : batch) {
+					OpCodec.writeMessage(out, msg, binary);
+				}
+				out.flush();
+				batch.clear();
+
+				TimeUnit.MILLISECONDS.sleep(FRAME_MILLIS);
+			}
+		}
+		catch (InterruptedException e) {
+			// shutting down
+		}
+		catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Keeps the error, drops whatever is still queued, and hangs up, so the owner's reading thread hears of it
+	 */
+	private void fail(IOException e) {
+		System.err.println("couldn't write to the server: " + e);
+		lock.lock();
+		try {
+			failure = e;
+			outbox.clear();
+			moveID = -1;
+		}
+		finally {
+			lock.unlock();
+		}
+		try {
+			out.close();
+		}
+		catch (IOException closing) {
+			// already broken
+		}
+	}
+}
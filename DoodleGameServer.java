@@ -1,6 +1,8 @@
 import java.net.*;
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /** @author Maria Paula Mora
  * Partner: Lizzie Hernandez
@@ -11,13 +13,15 @@ public class DoodleGameServer {
     private Map<DoodleGameServerCommunicator, String> roles;
     private Map<DoodleGameServerCommunicator, String> names;        //
     private SketchEC sketch;								            // the state of the world
-    private int currentID = 0;                                      // shape id
+    private final AtomicInteger currentID = new AtomicInteger();    // the last shape id handed out (communicators ask at once)
     private int numOfPlayers = 0;                                   // number of people who have connected
     private ArrayList<DoodleGameServerCommunicator> leaderBoard;
     private int indexOfDrawer = -1;
     private boolean gameStarted = false;
     private String answer = "";
     private int rounds = 0;
+    private final ReentrantLock lock = new ReentrantLock();         // guards the game state; not synchronized, so virtual threads don't pin
+    private boolean virtualThreads = false;                         // whether connections run on virtual threads
 
     public DoodleGameServer(ServerSocket listen) {
         this.listen = listen;
@@ -37,8 +41,7 @@ public class DoodleGameServer {
      * @return assigned integer as an ID for a shape in the world
      */
     public int getCurrentID() {
-        currentID += 1;		// all IDs are different
-        return currentID;
+        return currentID.incrementAndGet();		// all IDs are different
     }
 
     public int getRounds(){return rounds;}
@@ -64,20 +67,26 @@ public class DoodleGameServer {
         return allPlayers;
     }
 
-    public synchronized void setRoles(){
-        indexOfDrawer = (indexOfDrawer+1)%numOfPlayers;
-        rounds += 1;
-        roles = new HashMap<>();
+    public void setRoles() {
+        lock.lock();
+        try {
+            indexOfDrawer = (indexOfDrawer+1)%numOfPlayers;
+            rounds += 1;
+            roles = new HashMap<>();
 
-        int idx = 0;
-        for(DoodleGameServerCommunicator comm: comms){
-            if(idx == indexOfDrawer){
-                roles.put(comm, "drawer");
-            }
-            else{
-                roles.put(comm, "guesser");
+            int idx = 0;
+            for(DoodleGameServerCommunicator comm: comms){
+                if(idx == indexOfDrawer){
+                    roles.put(comm, "drawer");
+                }
+                else{
+                    roles.put(comm, "guesser");
+                }
+                idx++;
             }
-            idx++;
+        }
+        finally {
+            lock.unlock();
         }
     }
 
@@ -89,6 +98,13 @@ public class DoodleGameServer {
         this.gameStarted = gameStarted;
     }
 
+    /**
+     * @param virtualThreads whether to run each connection on a virtual thread instead of a platform thread
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
     /**
      * The usual loop of accepting connections and firing off new threads to handle them
      */
@@ -96,23 +112,41 @@ public class DoodleGameServer {
         System.out.println("server ready for connections");
         while (!gameStarted) {
             DoodleGameServerCommunicator comm = new DoodleGameServerCommunicator(listen.accept(), this);
-            comm.setDaemon(true);
-            comm.start();
+            if (virtualThreads) {
+                Thread.ofVirtual().start(comm);
+            }
+            else {
+                Thread thread = new Thread(comm);
+                thread.setDaemon(true);
+                thread.start();
+            }
             addCommunicator(comm);
         }
     }
 
-    public synchronized void addPlayer(DoodleGameServerCommunicator comm, String name){
-        names.put(comm, name);
-        numOfPlayers++;
+    public void addPlayer(DoodleGameServerCommunicator comm, String name) {
+        lock.lock();
+        try {
+            names.put(comm, name);
+            numOfPlayers++;
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
-    public synchronized void addResult(DoodleGameServerCommunicator comm){
-        leaderBoard.add(comm);
+    public void addResult(DoodleGameServerCommunicator comm) {
+        lock.lock();
+        try {
+            leaderBoard.add(comm);
 
-        // once all communicators have sent their results
-        if(leaderBoard.size() == comms.size()){
-            sortAndSendLeaderBoard();
+            // once all communicators have sent their results
+            if(leaderBoard.size() == comms.size()){
+                sortAndSendLeaderBoard();
+            }
+        }
+        finally {
+            lock.unlock();
         }
     }
 
@@ -137,39 +171,63 @@ public class DoodleGameServer {
     /**
      * Adds the communicator to the list of current communicators
      */
-    public synchronized void addCommunicator(DoodleGameServerCommunicator comm) {
-        comms.add(comm);
+    public void addCommunicator(DoodleGameServerCommunicator comm) {
+        lock.lock();
+        try {
+            comms.add(comm);
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     /**
      * Removes the communicator from the list of current communicators
      */
-    public synchronized void removeCommunicator(DoodleGameServerCommunicator comm) {
-        comms.remove(comm);
-        roles.remove(comm);
-        names.remove(comm);
-        numOfPlayers --;
+    public void removeCommunicator(DoodleGameServerCommunicator comm) {
+        lock.lock();
+        try {
+            comms.remove(comm);
+            roles.remove(comm);
+            names.remove(comm);
+            numOfPlayers --;
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     /**
      * Sends the message from the one communicator to all (including the originator)
      */
-    public synchronized void broadcast(String msg) {
-        for (DoodleGameServerCommunicator comm : comms) {
-            comm.send(msg);
+    public void broadcast(String msg) {
+        lock.lock();
+        try {
+            for (DoodleGameServerCommunicator comm : comms) {
+                comm.send(msg);
+            }
+        }
+        finally {
+            lock.unlock();
         }
     }
 
     /**
      * Sends the message from the one communicator to everyone except the originator
      */
-    public synchronized void broadcastExcept(DoodleGameServerCommunicator comm, String msg) {
-        for (DoodleGameServerCommunicator otherComm : comms) {
-            System.out.println(comm);
-            if(comm != otherComm) {
-                otherComm.send(msg);
+    public void broadcastExcept(DoodleGameServerCommunicator comm, String msg) {
+        lock.lock();
+        try {
+            for (DoodleGameServerCommunicator otherComm : comms) {
+                System.out.println(comm);
+                if(comm != otherComm) {
+                    otherComm.send(msg);
+                }
             }
         }
+        finally {
+            lock.unlock();
+        }
     }
 
     public void removeAllCommunicators(){
@@ -178,14 +236,25 @@ public class DoodleGameServer {
         }
     }
 
-    public synchronized void broadcastRoles(){
-        for(DoodleGameServerCommunicator comm : comms){
-            String role = roles.get(comm);
-            comm.send("role " + role);
+    public void broadcastRoles() {
+        lock.lock();
+        try {
+            for(DoodleGameServerCommunicator comm : comms){
+                String role = roles.get(comm);
+                comm.send("role " + role);
+            }
+        }
+        finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * Runs the server; pass "virtual" to run each connection on a virtual thread
+     */
     public static void main(String[] args) throws Exception {
-        new DoodleGameServer(new ServerSocket(4242)).getConnections();
+        DoodleGameServer server = new DoodleGameServer(new ServerSocket(4242));
+        server.setVirtualThreads(args.length > 0 && args[0].equals("virtual"));
+        server.getConnections();
     }
 }
\ No newline at end of file
@@ -1,13 +1,16 @@
 import java.io.*;
 import java.net.Socket;
+import java.util.concurrent.locks.ReentrantLock;
 
 /** @author Maria Paula Mora
  * Partner: Lizzie Hernandez
  */
-public class DoodleGameServerCommunicator extends Thread {
+public class DoodleGameServerCommunicator implements Runnable {
     private Socket sock;					// to talk with client
-    private BufferedReader in;				// from client
-    private PrintWriter out;				// to client
+    private InputStream in;					// from client
+    private OutputStream out;				// to client
+    private boolean binary = false;			// whether we have agreed to send the client binary frames
+    private final ReentrantLock sendLock = new ReentrantLock();	// messages come from many threads; one at a time
     private DoodleGameServer server;			// handling communication for
     private String playerName;
     private int score;
@@ -22,7 +25,22 @@ public class DoodleGameServerCommunicator extends Thread {
      * @param msg
      */
     public void send(String msg) {
-        out.println(msg);
+        sendLock.lock();
+        try {
+            OpCodec.writeMessage(out, msg, binary);
+            out.flush();
+
+            // everything after our answer to the client's request goes out as binary frames
+            if (msg.equals(OpCodec.BINARY)) {
+                binary = true;
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        finally {
+            sendLock.unlock();
+        }
     }
 
     public int getScore(){return score;}
@@ -35,8 +53,8 @@ public class DoodleGameServerCommunicator extends Thread {
         try {
 
             // Communication channel
-            in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-            out = new PrintWriter(sock.getOutputStream(), true);
+            in = new BufferedInputStream(sock.getInputStream());
+            out = new BufferedOutputStream(sock.getOutputStream());
 
             // notify client of all current connections
             send(server.getAllPlayers());
@@ -44,7 +62,7 @@ public class DoodleGameServerCommunicator extends Thread {
             /*
              * first line receives the user's name
              */
-            String line = in.readLine();            // read name
+            String line = OpCodec.readMessage(in);            // read name
             playerName = line;
             server.addPlayer(this, line);                 // add to player list
             server.broadcast("addPlayer "+ line);                 // let all comms know the player has joined
@@ -52,10 +70,14 @@ public class DoodleGameServerCommunicator extends Thread {
 
             // Keep getting and handling messages from the client
 
-            while ((line = in.readLine()) != null) {
+            while ((line = OpCodec.readMessage(in)) != null) {
                 System.out.println("received:" + line);
+                // the client can take binary frames; agree, and switch after this answer
+                if (line.equals(OpCodec.BINARY)) {
+                    send(OpCodec.BINARY);
+                }
                 // first time someone sends start
-                if((line).equals("start")){
+                else if((line).equals("start")){
                     // let the server know someone sent start
                     server.setGameStarted(true);
                     // once someone sends start, let everyone know the game has started, move to next phase
@@ -101,16 +123,16 @@ public class DoodleGameServerCommunicator extends Thread {
                 else if(line.startsWith("add")){
                     // assign an ID to the new shape
                     int ID = server.getCurrentID();
-                    // modify current state of the world based on message
-                    server.getSketch().handleMessage(line + " " + ID);
-                    // notify editors of the change
-                    server.broadcast(line + " " + ID);
+                    // modify current state of the world based on message, and notify editors of the change
+                    if (server.getSketch().handleMessage(line + " " + ID)) {
+                        server.broadcast(line + " " + ID);
+                    }
                 }
                 else{
-                    // modify current state of the world based on message
-                    server.getSketch().handleMessage(line);
-                    // notify editors of the change
-                    server.broadcast(line);
+                    // modify current state of the world based on message, and notify editors of the change
+                    if (server.getSketch().handleMessage(line)) {
+                        server.broadcast(line);
+                    }
                 }
             }
 
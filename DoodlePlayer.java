@@ -3,7 +3,6 @@ import java.io.File;
 import java.util.ArrayList;
 import java.awt.*;
 import java.awt.event.*;
-import java.util.TreeMap;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
@@ -955,33 +954,25 @@ public class DoodlePlayer extends JFrame {
             }
             // handle other methods
             else {
-                // the map of all of the shapes and their id
-                TreeMap<Integer, Shape> shapeMap = sketch.getMap();
+                // the top-most shape being clicked on, if any
+                int id = sketch.shapeAt((int) p.getX(), (int) p.getY());
 
-                // For every shape we have in this map
-                for (int id : shapeMap.descendingKeySet()) {
+                if (id != -1) {
 
-                    // If this shape is being clicked on
-                    if (shapeMap.get(id).contains((int) p.getX(), (int) p.getY())) {
+                    // mark it as the current one being moved
+                    movingId = id;
 
-                        // mark it as the current one being moved
-                        movingId = id;
-
-                        // begin the move process
-                        if (mode == Mode.MOVE && moveFrom == null) {
-                            moveFrom = p;
-                        }
-                        else if (mode == Mode.RECOLOR) {
-                            // let the server know we wish to recolor
-                            comm.send("color " + movingId + " " + color.getRGB());
-                        }
-                        else {
-                            // let the server know we wish to delete
-                            comm.send("delete " + movingId);
-                        }
-
-                        // once we have found the top-most item, end the loop
-                        break;
+                    // begin the move process
+                    if (mode == Mode.MOVE && moveFrom == null) {
+                        moveFrom = p;
+                    }
+                    else if (mode == Mode.RECOLOR) {
+                        // let the server know we wish to recolor
+                        comm.send("color " + movingId + " " + color.getRGB());
+                    }
+                    else {
+                        // let the server know we wish to delete
+                        comm.send("delete " + movingId);
                     }
                 }
             }
@@ -1031,7 +1022,7 @@ public class DoodlePlayer extends JFrame {
                 int dy = (int) (p.getY() - moveFrom.getY());
 
                 //send the message that the object has been moved
-                comm.send("move " + movingId + " " + dx + " " + dy);
+                comm.sendMove(movingId, dx, dy);
 
                 // update the move from position
                 moveFrom = (p);
@@ -13,8 +13,8 @@ import java.net.UnknownHostException;
  */
 
 public class DoodlePlayerCommunicator extends Thread {
-    private PrintWriter out;		// to server
-    private BufferedReader in;		// from server
+    private ClientOutbox out;		// to server, written in the background
+    private InputStream in;			// from server
     protected DoodlePlayer player;		// handling communication for
 
     /**
@@ -25,8 +25,9 @@ public class DoodlePlayerCommunicator extends Thread {
         System.out.println("connecting to " + serverIP + "...");
         try {
             Socket sock = new Socket(serverIP, 4242);
-            out = new PrintWriter(sock.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+            out = new ClientOutbox(new BufferedOutputStream(sock.getOutputStream()));
+            out.start();
+            in = new BufferedInputStream(sock.getInputStream());
             System.out.println("...connected");
 
         }
@@ -41,7 +42,14 @@ public class DoodlePlayerCommunicator extends Thread {
      * Sends message to the server
      */
     public void send(String msg) {
-        out.println(msg);
+        out.send(msg);
+    }
+
+    /**
+     * Sends a move to the server; moves of the same shape made within one frame go as one
+     */
+    public void sendMove(int id, int dx, int dy) {
+        out.sendMove(id, dx, dy);
     }
 
     /**
@@ -64,11 +72,14 @@ public class DoodlePlayerCommunicator extends Thread {
             // send name to communicator
             send(hostname);
 
+            // ask for the compact binary form of the ops
+            send(OpCodec.BINARY);
+
 
             // Handle messages
             String line;
             // first time connected: get all player names already connected
-            line = in.readLine();
+            line = OpCodec.readMessage(in);
             if(line!= null) {
                 if(!line.equals("")) {
                     String[] names = line.split(",");
@@ -79,10 +90,14 @@ public class DoodlePlayerCommunicator extends Thread {
                 }
 
 
-                while ((line = in.readLine()) != null) {
+                while ((line = OpCodec.readMessage(in)) != null) {
+                    // the server agreed to binary frames; everything we send from now on uses them
+                    if (line.equals(OpCodec.BINARY)) {
+                        out.setBinary(true);
+                    }
                     // next line receives player's role, guesser or drawer
                     // after game has started, read role (drawer, guesser)
-                    if (line.startsWith("addPlayer")) {
+                    else if (line.startsWith("addPlayer")) {
                         player.addConnectedPlayer(line.split(" ")[1]);
                         player.repaint();
                     }
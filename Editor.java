@@ -3,7 +3,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.awt.*;
 import java.awt.event.*;
-import java.util.TreeMap;
+import java.awt.image.BufferedImage;
 
 import javax.swing.*;
 
@@ -16,7 +16,7 @@ import javax.swing.*;
  * Starter Code author: Chris Bailey-Kellogg and Travis Peters
  */
 
-public class Editor extends JFrame {
+public class Editor extends JFrame implements SketchView {
 	private static String serverIP = "localhost";			// IP address of sketch server
 	// "localhost" for your own machine;
 	// or ask a friend for their IP address
@@ -43,6 +43,21 @@ public class Editor extends JFrame {
 	// Communication
 	private EditorCommunicator comm;			// communication with the sketch server
 
+	// Repainting for updates from the server, at most once per frame
+	private static final int FRAME_MILLIS = 16;		// how often to check for updates to show (about 60 per second)
+	private static final long STATS_NANOS = 5_000_000_000L;		// how often to print repaint stats
+	private static boolean printStats = false;		// whether to print them at all (pass "stats" to main)
+	private Timer frameTimer;						// checks each frame whether anything came in
+	private volatile boolean dirty = false;			// whether updates have come in since the last repaint
+	private int opsSinceFrame = 0;					// updates applied since the last repaint
+	private long frames = 0, frameOps = 0;			// repaints for updates, and the updates they showed
+	private long paints = 0, paintNanos = 0;		// paints of the sketch, and the time they took in total
+
+	// The sketch's shapes drawn once and kept, so a repaint only redraws where they changed
+	private JComponent canvas;						// where the sketch is shown
+	private BufferedImage layer;					// every published shape, drawn (transparent elsewhere)
+	private long statsSince = System.nanoTime();	// when the stats were last printed
+
 	public Editor() {
 		super("Graphical Editor");
 
@@ -53,7 +68,7 @@ public class Editor extends JFrame {
 		comm.start();
 
 		// Helpers to create the canvas and GUI (buttons, etc.)
-		JComponent canvas = setupCanvas();
+		canvas = setupCanvas();
 		JComponent gui = setupGUI();
 
 		// Put the buttons and canvas together into the window
@@ -62,6 +77,10 @@ public class Editor extends JFrame {
 		cp.add(canvas, BorderLayout.CENTER);
 		cp.add(gui, BorderLayout.NORTH);
 
+		// Repaint for server updates on the Swing thread, once a frame if anything changed
+		frameTimer = new Timer(FRAME_MILLIS, e -> repaintFrame());
+		frameTimer.start();
+
 		// Usual initialization
 		setLocationRelativeTo(null);
 		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -158,6 +177,95 @@ public class Editor extends JFrame {
 		return gui;
 	}
 
+	/**
+	 * Notes that updates from the server were applied; they'll be shown at the next frame
+	 * (called from the communicator's thread)
+	 * @param ops how many updates there were
+	 */
+	public synchronized void requestRepaint(int ops) {
+		opsSinceFrame += ops;
+		dirty = true;
+	}
+
+	/**
+	 * Repaints if any updates came in since the last frame, and (if asked for) every so often prints
+	 * how many updates each repaint showed and how long painting takes
+	 */
+	private void repaintFrame() {
+		if (!dirty) {
+			return;
+		}
+		int ops;
+		synchronized (this) {
+			ops = opsSinceFrame;
+			opsSinceFrame = 0;
+			dirty = false;
+		}
+		// bring the layer up to date where anything changed, and repaint just there
+		java.awt.Rectangle region = sketch.takeDirtyRegion();
+		if (region != null && !updateLayer()) {
+			drawLayer(region);
+			canvas.repaint(region);
+		}
+		frames++;
+		frameOps += ops;
+
+		if (!printStats) {
+			return;
+		}
+		long now = System.nanoTime();
+		if (now - statsSince >= STATS_NANOS) {
+			System.out.printf("%.1f updates per frame, %dus per paint%n",
+					(double) frameOps / frames, paints == 0 ? 0 : paintNanos / paints / 1000);
+			frames = 0;
+			frameOps = 0;
+			paints = 0;
+			paintNanos = 0;
+			statsSince = now;
+		}
+	}
+
+	/**
+	 * Makes a new layer if there isn't one the size of the canvas yet, with every shape drawn in it
+	 * @return whether the layer was remade (and the canvas repainted)
+	 */
+	private boolean updateLayer() {
+		int w = Math.max(1, canvas.getWidth()), h = Math.max(1, canvas.getHeight());
+		if (layer != null && layer.getWidth() == w && layer.getHeight() == h) {
+			return false;
+		}
+
+		// everything is redrawn, so what changed until now doesn't matter
+		layer = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+		sketch.takeDirtyRegion();
+		drawLayer(new java.awt.Rectangle(0, 0, w, h));
+		canvas.repaint();
+		return true;
+	}
+
+	/**
+	 * Redraws the layer inside the region: clears it, then draws every shape touching it, bottom-most first
+	 */
+	private void drawLayer(java.awt.Rectangle region) {
+		RenderList list = sketch.getRenderList();
+		Graphics2D g = layer.createGraphics();
+		try {
+			g.setClip(region);
+			g.setComposite(AlphaComposite.Clear);
+			g.fillRect(region.x, region.y, region.width, region.height);
+			g.setComposite(AlphaComposite.SrcOver);
+
+			for (int i = 0; i < list.shapes.length; i++) {
+				if (list.bounds[i].intersects(region)) {
+					list.shapes[i].draw(g);
+				}
+			}
+		}
+		finally {
+			g.dispose();
+		}
+	}
+
 	/**
 	 * Getter for the sketch instance variable
 	 */
@@ -171,8 +279,12 @@ public class Editor extends JFrame {
 	 */
 	public void drawSketch(Graphics g) {
 
-		// draw all of the shapes of the sketch
-		sketch.draw(g);
+		// draw all of the shapes of the sketch, as already drawn into the layer
+		long start = System.nanoTime();
+		updateLayer();
+		g.drawImage(layer, 0, 0, null);
+		paintNanos += System.nanoTime() - start;
+		paints++;
 
 		// draw the current shape
 		if (curr != null) {
@@ -219,35 +331,27 @@ public class Editor extends JFrame {
 		}
 		// handle other methods
 		else {
-			// the map of all of the shapes and their id
-			TreeMap<Integer, Shape> shapeMap = sketch.getMap();
-
-			// For every shape we have in this map
-			for (int id : shapeMap.descendingKeySet()) {
+			// the top-most shape being clicked on, if any
+			int id = sketch.shapeAt((int) p.getX(), (int) p.getY());
 
-				// If this shape is being clicked on
-				if (shapeMap.get(id).contains((int) p.getX(), (int) p.getY())) {
+			if (id != -1) {
 
-					// mark it as the current one being moved
-					movingId = id;
+				// mark it as the current one being moved
+				movingId = id;
 
-					// begin the move process
-					if (mode == Mode.MOVE && moveFrom == null) {
-						moveFrom = p;
-					}
-
-					else if (mode == Mode.RECOLOR) {
-						// let the server know we wish to recolor
-						comm.send("color " + movingId + " " + color.getRGB());
-					}
+				// begin the move process
+				if (mode == Mode.MOVE && moveFrom == null) {
+					moveFrom = p;
+				}
 
-					else {
-						// let the server know we wish to delete
-						comm.send("delete " + movingId);
-					}
+				else if (mode == Mode.RECOLOR) {
+					// let the server know we wish to recolor
+					comm.sendOp("color " + movingId + " " + color.getRGB());
+				}
 
-					// once we have found the top-most item, end the loop
-					break;
+				else {
+					// let the server know we wish to delete
+					comm.sendOp("delete " + movingId);
 				}
 			}
 		}
@@ -260,6 +364,8 @@ public class Editor extends JFrame {
 	 * in moving mode, (request to) drag the object
 	 */
 	private void handleDrag(Point p) {
+		// where the shape being drawn (if any) was, to repaint there
+		java.awt.Rectangle before = curr != null ? curr.getBounds() : null;
 
 		// if the shape exists
 		if (curr != null && drawFrom != null) {
@@ -292,14 +398,17 @@ public class Editor extends JFrame {
 			int dy = (int) (p.getY() - moveFrom.getY());
 
 			//send the message that the object has been moved
-			comm.send("move " + movingId + " " + dx + " " + dy);
+			comm.sendMove(movingId, dx, dy);
 
 			// update the move from position
 			moveFrom = (p);
 		}
 
-		// Refresh the canvas since the appearance has changed
-		repaint();
+		// Refresh the canvas where the shape being drawn was and is now
+		// (moved shapes are repainted as soon as the move is applied here)
+		if (before != null) {
+			canvas.repaint(before.union(curr.getBounds()));
+		}
 	}
 
 	/**
@@ -315,8 +424,15 @@ public class Editor extends JFrame {
 			// once we finally release the mouse, let the server know we created an object
 			if (mode == Mode.DRAW && drawFrom != null) {
 
-				// send the message that the shape has been added
-				comm.send("add " + curr.toString());
+				// with an ID of our own the shape is final already: show it now, and tell the server which ID it has
+				int id = comm.takeID();
+				if (id != -1) {
+					comm.sendOp("add " + curr.toString() + " " + id);
+				}
+				else {
+					// send the message that the shape has been added, and let the server pick its ID
+					comm.send("add " + curr.toString());
+				}
 
 				// we have finished this shape so reset current
 				curr = null;
@@ -327,7 +443,7 @@ public class Editor extends JFrame {
 		else if (mode == Mode.MOVE && movingId != -1) {
 
 			//send the message that the object has stopped being moved
-			comm.send("move " + movingId + " " + 0 + " " + 0);
+			comm.sendOp("move " + movingId + " " + 0 + " " + 0);
 
 			// reset the variables
 			moveFrom = null;
@@ -335,7 +451,15 @@ public class Editor extends JFrame {
 		}
 	}
 
+	/**
+	 * Opens two editors; pass "stats" to have them print repaint stats every so often
+	 */
 	public static void main(String[] args) {
+		for (String arg : args) {
+			if (arg.equals("stats")) {
+				printStats = true;
+			}
+		}
 		SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
 				new Editor();
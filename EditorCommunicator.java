@@ -1,32 +1,50 @@
 import java.awt.*;
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Edited by: Maria Paula Mora
  * Partner: Lizzie Hernandez
  *
  * Handles communication to/from the server for the editor
+ * If the connection is lost, keeps trying to connect again, and picks up where it left off (see OpTail)
  *
  * Starter Code author: Chris Bailey-Kellogg and Travis Peters
  */
 
 public class EditorCommunicator extends Thread {
-	private PrintWriter out;		// to server
-	private BufferedReader in;		// from server
-	protected Editor editor;		// handling communication for
+	private String serverIP;				// where the server is
+	private Socket sock;					// the connection to it
+	private volatile ClientOutbox out;		// to server, written in the background
+	private InputStream in;					// from server
+	protected SketchView editor;			// handling communication for (Editor's window)
+
+	// Where we are in the server's ops, to pick up from there after losing the connection (see OpTail)
+	public static final long MAX_RETRY_MILLIS = 5000;		// the longest to wait between tries to connect again
+	private long epoch = -1;			// which run of the server they are from (-1 until we are told)
+	private long seq = 0;				// the sequence number of the last one we have
+
+	public static final int LEASE_SIZE = 64;		// how many shape IDs to ask the server for at a time
+
+	private boolean loading = false;						// whether a snapshot of the world is still coming in
+	private boolean optimistic = false;						// whether the server agreed to ack our ops instead of echoing them (guarded by the sketch's lock)
+	private ArrayList<String> pending = new ArrayList<>();	// updates that arrived during the snapshot, in order
+	private final OpParser parser = new OpParser();			// reads the server's own messages (only on this thread)
+
+	// IDs of our own for new shapes, so they show up without waiting for the server (guarded by this)
+	private IdLease lease, nextLease;		// the block being used, and the one to go on to
+	private boolean leaseRequested = false;	// whether we have asked for another block and not heard back
 
 	/**
 	 * Establishes connection and in/out pair
 	 */
-	public EditorCommunicator(String serverIP, Editor editor) {
+	public EditorCommunicator(String serverIP, SketchView editor) {
+		this.serverIP = serverIP;
 		this.editor = editor;
-		System.out.println("connecting to " + serverIP + "...");
 		try {
-			Socket sock = new Socket(serverIP, 4242);
-			out = new PrintWriter(sock.getOutputStream(), true);
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			System.out.println("...connected");
+			connect();
 		}
 		catch (IOException e) {
 			System.err.println("couldn't connect");
@@ -34,37 +52,306 @@ public class EditorCommunicator extends Thread {
 		}
 	}
 
+	/**
+	 * Opens a connection to the server and starts over on it: picks up where we left off if we were connected before,
+	 * and asks to show our own ops right away, for the compact binary form of the ops, and for some IDs of our own
+	 */
+	private void connect() throws IOException {
+		System.out.println("connecting to " + serverIP + "...");
+		Socket socket = new Socket(serverIP, 4242);
+		ClientOutbox outbox = new ClientOutbox(new BufferedOutputStream(socket.getOutputStream()));
+		outbox.start();
+		sock = socket;
+		in = new BufferedInputStream(socket.getInputStream());
+		System.out.println("...connected");
+
+		Sketch sketch = editor.getSketch();
+		sketch.batch(() -> {
+			// whatever of ours the server hadn't confirmed is taken back; what did get through comes with what we missed
+			sketch.rollback();
+			out = outbox;
+			optimistic = false;
+			pending.clear();
+
+			// a snapshot cut off partway leaves nothing to pick up from: start over with a whole one
+			if (loading) {
+				epoch = -1;
+				loading = false;
+			}
+
+			// the request to resume has to come first, and the one to show our own ops before any op
+			if (epoch != -1) {
+				send(OpTail.RESUME + " " + epoch + " " + seq);
+			}
+			send(ClientOp.OPTIMISTIC);
+			send(OpCodec.BINARY);
+		});
+
+		// any IDs we were leased went back to the server with the old connection
+		synchronized (this) {
+			lease = null;
+			nextLease = null;
+			leaseRequested = false;
+			takeID(false);
+		}
+	}
+
+	/**
+	 * Keeps trying to connect again after the connection was lost, waiting longer after each failure
+	 */
+	private void reconnect() throws InterruptedException {
+		out.interrupt();
+		try {
+			sock.close();
+		}
+		catch (IOException e) {
+			// already gone
+		}
+
+		long wait = 100;
+		while (true) {
+			TimeUnit.MILLISECONDS.sleep(wait);
+			try {
+				connect();
+				return;
+			}
+			catch (IOException e) {
+				System.out.println("couldn't connect, trying again in " + wait + " ms");
+				wait = Math.min(wait * 2, MAX_RETRY_MILLIS);
+			}
+		}
+	}
+
+	/**
+	 * Handles one message from the server
+	 */
+	private void handle(String line) {
+		// the server agreed to binary frames; everything we send from now on uses them
+		if (line.equals(OpCodec.BINARY)) {
+			out.setBinary(true);
+		}
+
+		// the server will ack our ops instead of sending them back, so we can show them as soon as they're made
+		else if (line.equals(ClientOp.OPTIMISTIC)) {
+			optimistic = true;
+		}
+
+		// a block of IDs for us alone (no matter where the snapshot is)
+		else if (line.startsWith(IdLease.LEASE + " ")) {
+			parser.reset(line, IdLease.LEASE.length(), line.length());
+			int first = parser.nextInt();
+			int count = parser.nextInt();
+			if (parser.finished() && count > 0 && first > 0 && first + count > first) {
+				addLease(new IdLease(first, first + count));
+			}
+			else {
+				ignore(line);
+			}
+		}
+
+		// where the ops that follow start (given with a snapshot)
+		else if (line.startsWith(OpTail.POSITION + " ")) {
+			parser.reset(line, OpTail.POSITION.length(), line.length());
+			long givenEpoch = parser.nextLong();
+			long givenSeq = parser.nextLong();
+			if (parser.finished()) {
+				epoch = givenEpoch;
+				seq = givenSeq;
+			}
+			else {
+				// nowhere to resume from; the next connection starts over with a snapshot
+				epoch = -1;
+				ignore(line);
+			}
+		}
+
+		// the current state of the world, a chunk at a time (replacing whatever we had, but not our own ops still on the way)
+		else if (Snapshot.isSnapshotMessage(line)) {
+			if (line.startsWith(Snapshot.BEGIN)) {
+				editor.getSketch().beginLoad();
+				loading = true;
+			}
+			else if (line.equals(Snapshot.END)) {
+				// ours go back on top, then catch up on everything that happened since the snapshot (acks of ours too), in order
+				editor.getSketch().endLoad();
+				loading = false;
+				for (String update : pending) {
+					apply(update);
+				}
+				pending.clear();
+			}
+			else {
+				editor.getSketch().parseSketch(line.substring(Snapshot.CHUNK.length()));
+			}
+		}
+
+		// updates during a snapshot have to wait for the rest of it
+		else if (loading) {
+			pending.add(line);
+		}
+
+		else {
+			apply(line);
+		}
+	}
+
+	/**
+	 * Applies an update from the server: someone's op (each one the next in sequence), or the server's word on one of ours
+	 */
+	private void apply(String line) {
+		Sketch sketch = editor.getSketch();
+		if (line.startsWith(ClientOp.ACK + " ")) {
+			// ours are in; and we have every op up to the sequence number given, ours included
+			parser.reset(line, ClientOp.ACK.length(), line.length());
+			long number = parser.nextLong();
+			long upTo = parser.nextLong();
+			if (parser.finished()) {
+				sketch.confirm(number);
+				seq = upTo;
+			}
+			else {
+				ignore(line);
+			}
+		}
+		else if (line.startsWith(ClientOp.NACK + " ")) {
+			parser.reset(line, ClientOp.NACK.length(), line.length());
+			long number = parser.nextLong();
+			if (parser.finished()) {
+				sketch.reject(number);
+			}
+			else {
+				ignore(line);
+			}
+		}
+		else {
+			sketch.applyRemote(line);
+			seq++;
+		}
+	}
+
+	/**
+	 * Skips a message from the server that should have been well-formed, instead of letting it stop the reader
+	 */
+	private void ignore(String line) {
+		System.err.println("ignoring malformed message from the server: " + line);
+	}
+
+	/**
+	 * Gives a new shape an ID from our own blocks, asking for the next block well before this one runs out
+	 * @return the ID, or -1 if we have none (then let the server pick one)
+	 */
+	public int takeID() {
+		return takeID(true);
+	}
+
+	/**
+	 * @param take whether to use up an ID, or only to make sure more are coming
+	 */
+	private synchronized int takeID(boolean take) {
+		if ((lease == null || lease.remaining() == 0) && nextLease != null) {
+			lease = nextLease;
+			nextLease = null;
+		}
+		int id = (take && lease != null) ? lease.take() : -1;
+		if (nextLease == null && !leaseRequested && (lease == null || lease.remaining() < LEASE_SIZE / 2)) {
+			leaseRequested = true;
+			send(IdLease.LEASE + " " + LEASE_SIZE);
+		}
+		return id;
+	}
+
+	/**
+	 * Keeps a block of IDs the server gave us
+	 */
+	private synchronized void addLease(IdLease given) {
+		leaseRequested = false;
+		if (lease == null || lease.remaining() == 0) {
+			lease = given;
+		}
+		else {
+			nextLease = given;
+		}
+		takeID(false);
+	}
+
 	/**
 	 * Sends message to the server
 	 */
 	public void send(String msg) {
-		out.println(msg);
+		out.send(msg);
+	}
+
+	/**
+	 * Sends an op about a shape to the server, showing it right away (see Sketch.applyLocal)
+	 */
+	public void sendOp(String msg) {
+		Sketch sketch = editor.getSketch();
+		sketch.batch(() -> sketch.applyLocal(out.send(msg), msg, optimistic));
+		sketch.publish();
+		editor.requestRepaint(1);
+	}
+
+	/**
+	 * Sends a move to the server, showing it right away; moves of the same shape made within one frame go as one
+	 */
+	public void sendMove(int id, int dx, int dy) {
+		Sketch sketch = editor.getSketch();
+		sketch.batch(() -> sketch.applyLocal(out.sendMove(id, dx, dy), "move " + id + " " + dx + " " + dy, optimistic));
+		sketch.publish();
+		editor.requestRepaint(1);
 	}
 
 	/**
-	 * Keeps listening for and handling (your code) messages from the server
+	 * Keeps listening for and handling (your code) messages from the server, connecting again whenever the connection is lost
 	 */
 	public void run() {
 		try {
-			// Handle messages
-			String line = in.readLine();
-			editor.getSketch().parseSketch(line);
+			while (true) {
+				try {
+					readUpdates();
+					System.out.println("server hung up");
+				}
+				catch (IOException e) {
+					System.out.println("server hung up: " + e);
+				}
+				reconnect();
+			}
+		}
+		catch (InterruptedException e) {
+			// shutting down
+		}
+	}
 
-			// keep reading new updates
-			while ((line = in.readLine()) != null) {
+	/**
+	 * Handles messages from the server until the connection ends
+	 * Everything that has already arrived is handled as one batch, with one repaint
+	 */
+	private void readUpdates() throws IOException {
+		String line;
+		ArrayList<String> batch = new ArrayList<>();
 
-				// handle the messages given
-				editor.getSketch().handleMessage(line);
+		// keep reading new updates
+		while ((line = OpCodec.readMessage(in)) != null) {
 
-				// repaint the editor to get the state of the world
-				editor.repaint();
+			// take everything else that has already arrived too, without waiting for more
+			batch.add(line);
+			while (in.available() > 0 && (line = OpCodec.readMessage(in)) != null) {
+				batch.add(line);
 			}
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-		}
-		finally {
-			System.out.println("server hung up");
+
+			// handle the messages given, taking the sketch's lock just once
+			editor.getSketch().batch(() -> {
+				for (String msg : batch) {
+					handle(msg);
+				}
+			});
+
+			// let the editor draw the result, while we go on with the next batch
+			editor.getSketch().publish();
+
+			// repaint the editor (at the next frame) to get the state of the world
+			editor.requestRepaint(batch.size());
+			batch.clear();
 		}
 	}
 }
@@ -12,8 +12,9 @@ import java.net.Socket;
  */
 
 public class EditorCommunicatorEC extends Thread {
-    private PrintWriter out;		// to server
-    private BufferedReader in;		// from server
+    private OutputStream out;		// to server
+    private InputStream in;			// from server
+    private volatile boolean binary = false;	// whether the server has agreed to binary frames
     protected DoodlePlayer editor;		// handling communication for
 
     /**
@@ -24,9 +25,12 @@ public class EditorCommunicatorEC extends Thread {
         System.out.println("connecting to " + serverIP + "...");
         try {
             Socket sock = new Socket(serverIP, 4242);
-            out = new PrintWriter(sock.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+            out = new BufferedOutputStream(sock.getOutputStream());
+            in = new BufferedInputStream(sock.getInputStream());
             System.out.println("...connected");
+
+            // ask for the compact binary form of the ops
+            send(OpCodec.BINARY);
         }
         catch (IOException e) {
             System.err.println("couldn't connect");
@@ -38,7 +42,13 @@ public class EditorCommunicatorEC extends Thread {
      * Sends message to the server
      */
     public void send(String msg) {
-        out.println(msg);
+        try {
+            OpCodec.writeMessage(out, msg, binary);
+            out.flush();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -47,11 +57,17 @@ public class EditorCommunicatorEC extends Thread {
     public void run() {
         try {
             // Handle messages
-            String line = in.readLine();
+            String line = OpCodec.readMessage(in);
             editor.getSketch().parseSketch(line);
 
             // keep reading new updates
-            while ((line = in.readLine()) != null) {
+            while ((line = OpCodec.readMessage(in)) != null) {
+
+                // the server agreed to binary frames; everything we send from now on uses them
+                if (line.equals(OpCodec.BINARY)) {
+                    binary = true;
+                    continue;
+                }
 
                 // handle the messages given
                 editor.getSketch().handleMessage(line);
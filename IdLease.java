@@ -0,0 +1,56 @@
+/**
+ * A block of shape IDs the server has handed to one client, so the client can give a new shape
+ * its final ID itself (and show it right away) instead of waiting for the server to echo the add back
+ *
+ * The client takes IDs from the block in order; the server's copy follows along as the adds come in
+ * (claim), so an add can only use an ID once. Whatever the client never uses is just skipped.
+ * Not thread-safe; each side keeps its own copy on one thread (or under its own lock).
+ *
+ * Over the wire: the client asks with "lease <count>", and the server answers "lease <first> <count>".
+ */
+public class IdLease {
+	public static final String LEASE = "lease";		// the request, and the answer
+
+	public final int first, end;	// the IDs from first up to (not including) end
+	private int next;				// the next one not yet used
+
+	public IdLease(int first, int end) {
+		this.first = first;
+		this.end = end;
+		next = first;
+	}
+
+	/**
+	 * How many IDs are left
+	 */
+	public int remaining() {
+		return end - next;
+	}
+
+	/**
+	 * Uses up the next ID
+	 * @return the ID, or -1 if there are none left
+	 */
+	public int take() {
+		return next < end ? next++ : -1;
+	}
+
+	/**
+	 * Uses up an ID the client took, and every one before it
+	 * @return false if it isn't one left in this block
+	 */
+	public boolean claim(int id) {
+		if (id < next || id >= end) {
+			return false;
+		}
+		next = id + 1;
+		return true;
+	}
+
+	/**
+	 * The answer to send the client
+	 */
+	public String toMessage() {
+		return LEASE + " " + next + " " + remaining();
+	}
+}
@@ -0,0 +1,278 @@
+import java.util.TreeMap;
+
+/**
+ * Values looked up by int ID, kept in an array indexed by the ID itself (less a base),
+ * so getting, adding and removing are all just an array access, with no boxing and no tree to walk
+ *
+ * IDs are handed out by a counter, so they are dense: a removed value just leaves an empty slot,
+ * and going through the IDs in order is going through the array. Empty slots at either end are dropped,
+ * and the array shrinks once most of it is empty, so the array only ever spans from the lowest ID still in it
+ * to the highest. Not thread-safe; the sketch guards it with its own lock.
+ *
+ * The array never spans more than MAX_SPAN IDs. Values too far below it (an old shape that outlived
+ * millions of newer ones) are kept in a TreeMap instead, below; when an ID comes too far above it,
+ * the array moves up, handing the values it leaves behind to that map. So any ID can be put: the ones
+ * near the newest are in the array, and the few left far behind cost no more than they did in a TreeMap.
+ *
+ * Go through the values in ID order with
+ *      for (int id = table.lowest(); id <= table.highest(); id = table.next(id)) { T value = table.get(id); ... }
+ * (or from highest() down to lowest() with previous); that skips empty slots, and the gap between the array and below.
+ */
+public class IdTable<T> {
+	public static final int MAX_SPAN = 1 << 24;		// the most IDs apart the array's lowest and highest may be
+
+	private Object[] slots;		// the values; the one for ID base + i is in slots[i]
+	private int base;			// the ID of slots[0]
+	private int lo, hi;			// slots before lo and from hi on are all empty
+	private int size;			// how many slots are not empty
+	private TreeMap<Integer, T> below;	// the values with IDs too far below the array to fit in it (all below base), or null if none
+
+	public IdTable() {
+		slots = new Object[16];
+	}
+
+	/**
+	 * How many values there are
+	 */
+	public int size() {
+		return below == null ? size : size + below.size();
+	}
+
+	/**
+	 * The lowest ID with a value (or, if there are none, one more than highest)
+	 */
+	public int lowest() {
+		return below != null ? below.firstKey() : base + lo;
+	}
+
+	/**
+	 * The highest ID with a value
+	 */
+	public int highest() {
+		return (lo == hi && below != null) ? below.lastKey() : base + hi - 1;
+	}
+
+	/**
+	 * The lowest ID above this one with a value
+	 * @return the ID, or one more than highest if there is none
+	 */
+	public int next(int id) {
+		if (below != null && id < below.lastKey()) {
+			return below.higherKey(id);
+		}
+		for (long i = Math.max((long) id + 1 - base, lo); i < hi; i++) {
+			if (slots[(int) i] != null) {
+				return base + (int) i;
+			}
+		}
+		return highest() + 1;
+	}
+
+	/**
+	 * The highest ID below this one with a value
+	 * @return the ID, or one less than lowest if there is none
+	 */
+	public int previous(int id) {
+		for (long i = Math.min((long) id - 1 - base, hi - 1); i >= lo; i--) {
+			if (slots[(int) i] != null) {
+				return base + (int) i;
+			}
+		}
+		if (below != null) {
+			Integer lower = below.lowerKey(id);
+			if (lower != null) {
+				return lower;
+			}
+		}
+		return lowest() - 1;
+	}
+
+	/**
+	 * @return the value for the ID, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(int id) {
+		long i = (long) id - base;
+		if (i < lo || i >= hi) {
+			return (i < 0 && below != null) ? below.get(id) : null;
+		}
+		return (T) slots[(int) i];
+	}
+
+	public boolean containsKey(int id) {
+		return get(id) != null;
+	}
+
+	/**
+	 * Sets the value for the ID, making room for it if needed
+	 */
+	public void put(int id, T value) {
+		if (value == null) {
+			remove(id);
+			return;
+		}
+
+		// under the array, once some values have gone there
+		if (below != null && id < base) {
+			below.put(id, value);
+			return;
+		}
+
+		// the first value in the array: start it around the ID (below, if any, is all under it)
+		if (lo == hi) {
+			base = id;
+			lo = 0;
+			hi = 0;
+		}
+
+		long i = (long) id - base;
+		if (i < 0 || i >= slots.length) {
+			long from = Math.min((long) id, base + lo), to = Math.max((long) id, (long) base + hi - 1);
+			if (to - from + 1 > MAX_SPAN) {
+				if (i < 0) {
+					// too far under the rest: it goes below
+					below = new TreeMap<>();
+					below.put(id, value);
+					return;
+				}
+				// too far over the rest: move the array up, leaving room for more IDs to come
+				moveUp(id - MAX_SPAN / 2);
+				if (lo == hi) {
+					base = id;
+				}
+			}
+			i = (long) id - base;
+			if (i < 0 || i >= slots.length) {
+				resize(Math.min((long) id, base + lo), Math.max((long) id, (long) base + hi - 1), i < 0);
+				i = (long) id - base;
+			}
+		}
+
+		int at = (int) i;
+		if (slots[at] == null) {
+			size++;
+		}
+		slots[at] = value;
+		lo = Math.min(lo, at);
+		hi = Math.max(hi, at + 1);
+	}
+
+	/**
+	 * Removes the value for the ID, if any
+	 * @return the value that was removed, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public T remove(int id) {
+		long i = (long) id - base;
+		if (i < 0 && below != null) {
+			T value = below.remove(id);
+			if (below.isEmpty()) {
+				below = null;
+			}
+			return value;
+		}
+		if (i < lo || i >= hi || slots[(int) i] == null) {
+			return null;
+		}
+
+		int at = (int) i;
+		T value = (T) slots[at];
+		slots[at] = null;
+		size--;
+
+		// drop empty slots from the ends
+		while (lo < hi && slots[lo] == null) {
+			lo++;
+		}
+		while (hi > lo && slots[hi - 1] == null) {
+			hi--;
+		}
+
+		// shrink once the IDs in use take up just a small part of the array
+		if (slots.length > 64 && (hi - lo) * 4 < slots.length) {
+			resize(base + lo, base + hi - 1, false);
+		}
+		return value;
+	}
+
+	/**
+	 * Removes every value
+	 */
+	public void clear() {
+		slots = new Object[16];
+		base = 0;
+		lo = 0;
+		hi = 0;
+		size = 0;
+		below = null;
+	}
+
+	/**
+	 * Hands every value in the array with an ID under cut to below, so the array can go on from there
+	 */
+	@SuppressWarnings("unchecked")
+	private void moveUp(int cut) {
+		if (below == null) {
+			below = new TreeMap<>();
+		}
+		for (; lo < hi && base + lo < cut; lo++) {
+			if (slots[lo] != null) {
+				below.put(base + lo, (T) slots[lo]);
+				slots[lo] = null;
+				size--;
+			}
+		}
+		while (lo < hi && slots[lo] == null) {
+			lo++;
+		}
+		if (lo == hi) {
+			slots = new Object[16];
+			lo = 0;
+			hi = 0;
+		}
+		if (below.isEmpty()) {
+			below = null;
+		}
+	}
+
+	/**
+	 * Moves the values in the array into a new one with room for IDs from to to, and as many more again for IDs to come
+	 * @param down whether the room to spare goes below from (IDs are coming highest first, as in a snapshot) instead of past to
+	 */
+	private void resize(long from, long to, boolean down) {
+		long span = to - from + 1;
+		int capacity = (int) Math.min(Math.max(16, span * 2), MAX_SPAN);
+		Object[] bigger = new Object[capacity];
+
+		int newBase = (int) (down ? Math.max(Integer.MIN_VALUE, to - capacity + 1) : from);
+		if (hi > lo) {
+			System.arraycopy(slots, lo, bigger, base + lo - newBase, hi - lo);
+		}
+		int oldLowest = base + lo, oldHighest = base + hi - 1;
+		slots = bigger;
+		base = newBase;
+		if (size > 0) {
+			lo = oldLowest - base;
+			hi = oldHighest - base + 1;
+		}
+		else {
+			lo = 0;
+			hi = 0;
+		}
+	}
+
+	/**
+	 * Each ID and value, in ID order (for printing)
+	 */
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder("{");
+		for (int id = lowest(); id <= highest(); id = next(id)) {
+			if (result.length() > 1) {
+				result.append(", ");
+			}
+			result.append(id).append('=').append(get(id));
+		}
+		return result.append('}').toString();
+	}
+}
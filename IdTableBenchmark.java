@@ -0,0 +1,231 @@
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Checks IdTable against TreeMap<Integer, T> on random ops, then times the two side by side, in ns per op
+ *
+ * The check mixes adds going up (as the server's counter hands IDs out), adds going down (as a snapshot comes in,
+ * top-most first, which makes the table grow below its lowest ID), removes, lookups and walks in ID order,
+ * empties the table now and then to see it start over somewhere else, and puts IDs too far from the rest for one array
+ * (far below, and far enough above that the array has to move up).
+ * Any difference stops it with an exception.
+ *
+ * Run with: java IdTableBenchmark [rounds] [shapes]
+ */
+public class IdTableBenchmark {
+	private static volatile long sink;		// keeps the JIT from dropping the work
+
+	public static void main(String[] args) {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+		int shapes = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+		fuzz(rounds, new Random(5));
+		System.out.println(rounds + " rounds of random ops: IdTable and TreeMap agree");
+
+		// twice, so the first round is the warm-up
+		for (int round = 0; round < 2; round++) {
+			System.out.println(round == 0 ? "warming up" : "results, " + shapes + " IDs (TreeMap -> IdTable)");
+			time(shapes, new Random(round));
+		}
+	}
+
+	/**
+	 * Runs random ops on both, comparing them after each one
+	 */
+	private static void fuzz(int rounds, Random random) {
+		for (int round = 0; round < rounds; round++) {
+			IdTable<Integer> table = new IdTable<>();
+			TreeMap<Integer, Integer> map = new TreeMap<>();
+			int next = random.nextInt(2000) - 1000;
+
+			for (int op = 0; op < 4000; op++) {
+				int kind = random.nextInt(20);
+				if (kind < 6) {
+					// the next ID up
+					put(table, map, next++);
+				}
+				else if (kind < 8) {
+					// a run going down from below the lowest, like a snapshot
+					int from = map.isEmpty() ? next : map.firstKey() - 1 - random.nextInt(50);
+					for (int i = 0, length = random.nextInt(200); i < length; i++) {
+						put(table, map, from - i);
+					}
+				}
+				else if (kind < 14) {
+					// one that is there, or near one that is
+					int id = map.isEmpty() ? next : somewhere(map, random);
+					if (random.nextBoolean() && map.ceilingKey(id) != null) {
+						id = map.ceilingKey(id) + random.nextInt(3) - 1;
+					}
+					check(table.remove(id), map.remove(id), "remove " + id);
+				}
+				else if (kind < 19) {
+					int id = map.isEmpty() || random.nextBoolean() ? next - random.nextInt(3000) : somewhere(map, random);
+					check(table.get(id), map.get(id), "get " + id);
+					check(table.containsKey(id), map.containsKey(id), "containsKey " + id);
+					if (!map.isEmpty() && random.nextInt(16) == 0) {
+						// the walks step over empty slots, and the gap between the array and what is far below it
+						Integer higher = map.higherKey(id), lower = map.lowerKey(id);
+						check(table.next(id), higher != null ? higher : table.highest() + 1, "next " + id);
+						check(table.previous(id), lower != null ? lower : table.lowest() - 1, "previous " + id);
+					}
+				}
+				else if (random.nextInt(10) == 0) {
+					// empty it, so it shrinks, then start over somewhere else
+					while (!map.isEmpty()) {
+						int id = random.nextBoolean() ? map.firstKey() : map.lastKey();
+						check(table.remove(id), map.remove(id), "emptying, remove " + id);
+					}
+					check(table.size(), 0, "size once empty");
+					next = random.nextInt();
+					next = Math.max(next, Integer.MIN_VALUE + 4 * IdTable.MAX_SPAN);
+					next = Math.min(next, Integer.MAX_VALUE - 4 * IdTable.MAX_SPAN);
+				}
+				else if (!map.isEmpty() && random.nextInt(20) == 0 && map.lastKey() < Integer.MAX_VALUE - 4 * IdTable.MAX_SPAN) {
+					// a jump of a good part of the span, as when an old shape outlives millions of newer ones:
+					// enough of these and the array has to move up past it
+					next = map.lastKey() + IdTable.MAX_SPAN / 3 + random.nextInt(1000);
+					put(table, map, next++);
+				}
+				else if (!map.isEmpty() && map.firstKey() > Integer.MIN_VALUE + 4 * IdTable.MAX_SPAN) {
+					// much too far under the others for the array
+					put(table, map, map.firstKey() - IdTable.MAX_SPAN - random.nextInt(1000));
+				}
+
+				check(table.size(), map.size(), "size");
+				if (!map.isEmpty()) {
+					check(table.lowest(), map.firstKey(), "lowest");
+					check(table.highest(), map.lastKey(), "highest");
+				}
+			}
+			// the walk in ID order, and the printed form, come out the same
+			check(table.toString(), map.toString(), "in ID order");
+			StringBuilder down = new StringBuilder();
+			for (int id = table.highest(); id >= table.lowest(); id = table.previous(id)) {
+				down.append(id).append(' ');
+			}
+			StringBuilder expected = new StringBuilder();
+			for (int id : map.descendingKeySet()) {
+				expected.append(id).append(' ');
+			}
+			check(down.toString(), expected.toString(), "in reverse ID order");
+		}
+	}
+
+	/**
+	 * An ID between the lowest and highest in the map
+	 */
+	private static int somewhere(TreeMap<Integer, Integer> map, Random random) {
+		long span = (long) map.lastKey() - map.firstKey() + 3;
+		return (int) (map.firstKey() - 1 + (long) (random.nextDouble() * span));
+	}
+
+	private static void put(IdTable<Integer> table, TreeMap<Integer, Integer> map, int id) {
+		table.put(id, id);
+		map.put(id, id);
+	}
+
+	private static void check(Object actual, Object expected, String what) {
+		if (actual == null ? expected != null : !actual.equals(expected)) {
+			throw new IllegalStateException(what + ": IdTable gave " + actual + ", TreeMap " + expected);
+		}
+	}
+
+	/**
+	 * Times adds going up and going down, lookups at random, a walk in ID order, and removes, on each
+	 */
+	private static void time(int shapes, Random random) {
+		String value = "shape";
+		int[] lookups = new int[shapes];
+		for (int i = 0; i < shapes; i++) {
+			lookups[i] = random.nextInt(shapes);
+		}
+
+		long start = System.nanoTime();
+		TreeMap<Integer, String> map = new TreeMap<>();
+		for (int id = 0; id < shapes; id++) {
+			map.put(id, value);
+		}
+		long mapUp = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		IdTable<String> table = new IdTable<>();
+		for (int id = 0; id < shapes; id++) {
+			table.put(id, value);
+		}
+		long tableUp = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		TreeMap<Integer, String> mapDown = new TreeMap<>();
+		for (int id = shapes - 1; id >= 0; id--) {
+			mapDown.put(id, value);
+		}
+		long mapDownTime = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		IdTable<String> tableDown = new IdTable<>();
+		for (int id = shapes - 1; id >= 0; id--) {
+			tableDown.put(id, value);
+		}
+		long tableDownTime = System.nanoTime() - start;
+
+		// a third of them gone, as deletes leave them
+		for (int id = 0; id < shapes; id += 3) {
+			map.remove(id);
+			table.remove(id);
+		}
+
+		long found = 0;
+		start = System.nanoTime();
+		for (int id : lookups) {
+			if (map.containsKey(id)) {
+				found += map.get(id).length();
+			}
+		}
+		long mapGet = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int id : lookups) {
+			String shape = table.get(id);
+			if (shape != null) {
+				found += shape.length();
+			}
+		}
+		long tableGet = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (Integer id : map.navigableKeySet()) {
+			found += map.get(id).length();
+		}
+		long mapWalk = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int id = table.lowest(); id <= table.highest(); id = table.next(id)) {
+			found += table.get(id).length();
+		}
+		long tableWalk = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int id = 0; id < shapes; id++) {
+			mapDown.remove(id);
+		}
+		long mapRemove = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int id = 0; id < shapes; id++) {
+			tableDown.remove(id);
+		}
+		long tableRemove = System.nanoTime() - start;
+		sink = found + table.size() + tableDown.size() + mapDown.size();
+
+		report("put, IDs going up", mapUp, tableUp, shapes);
+		report("put, IDs going down", mapDownTime, tableDownTime, shapes);
+		report("containsKey + get, at random", mapGet, tableGet, shapes);
+		report("walk in ID order", mapWalk, tableWalk, map.size());
+		report("remove all, lowest first", mapRemove, tableRemove, shapes);
+	}
+
+	private static void report(String name, long mapNanos, long tableNanos, long ops) {
+		System.out.printf("  %-30s %7.1f -> %5.1f ns/op%n", name, (double) mapNanos / ops, (double) tableNanos / ops);
+	}
+}
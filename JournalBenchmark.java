@@ -0,0 +1,145 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Checks that a world rebuilt from OpJournal matches the one whose ops went in, times the rebuilding,
+ * and checks that appending keeps going (without recording) once the writer has failed
+ *
+ * Random ops (30% adds, then moves, recolors and deletes of shapes added earlier) are applied to a Sketch and appended
+ * to a journal in a fresh directory, as the sequencer does; then a new journal over the same directory replays them,
+ * once just decoding and once into a new Sketch, which has to come out the same. For the failure, the directory is
+ * deleted under a running writer and it is asked to start a new segment there.
+ * Any difference stops it with an exception.
+ *
+ * Run with: java JournalBenchmark [ops] [dir]
+ * The directory (a new one in the temp directory by default) is deleted afterwards.
+ */
+public class JournalBenchmark {
+	private static final int STUCK_APPENDS = 500_000;	// appends timed after the writer has failed
+	private static final long WAIT_MILLIS = 10_000;		// how long the writer gets to catch up or fail
+
+	public static void main(String[] args) throws Exception {
+		int ops = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		Path dir = args.length > 1 ? Files.createDirectories(Path.of(args[1])) : Files.createTempDirectory("journal");
+
+		try {
+			String expected = write(dir.toFile(), ops, new Random(7));
+
+			// three times, so the first rounds are the warm-up (the first one is the one after a restart)
+			for (int round = 0; round < 3; round++) {
+				long[] chars = {0};
+				long start = System.nanoTime();
+				long decoded = new OpJournal(dir.toFile(), -1).replay(0, op -> chars[0] += op.length());
+				long middle = System.nanoTime();
+				Sketch sketch = new Sketch();
+				long applied = new OpJournal(dir.toFile(), -1).replay(0, sketch::handleMessage);
+				long end = System.nanoTime();
+
+				if (decoded != ops || applied != ops || !sketch.toString().equals(expected)) {
+					throw new RuntimeException("recovered world differs (" + decoded + " and " + applied + " ops of " + ops + ")");
+				}
+				System.out.printf("%s: %,d ops recovered equal; decoding %,d ms, decoding and applying %,d ms%n",
+						round == 0 ? "cold" : "warm", ops, (middle - start) / 1_000_000, (end - middle) / 1_000_000);
+			}
+		}
+		finally {
+			delete(dir);
+		}
+
+		failure(Files.createTempDirectory("journal"));
+	}
+
+	/**
+	 * Applies random ops to a Sketch and journals those it took, waiting until they are all written
+	 * @return the world they make
+	 */
+	private static String write(File dir, int ops, Random random) throws IOException, InterruptedException {
+		OpJournal journal = new OpJournal(dir, -1);
+		journal.replay(0, op -> {});
+		journal.start();
+
+		Sketch sketch = new Sketch();
+		int adds = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < ops; i++) {
+			String msg;
+			int kind = random.nextInt(10);
+			if (kind < 3 || adds == 0) {
+				int x = random.nextInt(800), y = random.nextInt(800);
+				msg = random.nextBoolean()
+						? "add ellipse " + x + " " + y + " " + (x + 20) + " " + (y + 20) + " " + random.nextInt(1 << 24) + " " + adds
+						: "add polyline " + x + " " + y + " " + (x + 5) + " " + (y + 9) + " " + (x + 12) + " " + (y + 3) + " 0 " + adds;
+				adds++;
+			}
+			else if (kind < 8) {
+				msg = "move " + random.nextInt(adds) + " " + (random.nextInt(9) - 4) + " " + (random.nextInt(9) - 4);
+			}
+			else if (kind < 9) {
+				msg = "color " + random.nextInt(adds) + " " + random.nextInt(1 << 24);
+			}
+			else {
+				msg = "delete " + random.nextInt(adds);
+			}
+			// a delete or recolor of a shape already deleted isn't applied, so it isn't recorded either
+			if (sketch.handleMessage(msg)) {
+				journal.append(msg);
+			}
+			else {
+				i--;
+			}
+		}
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (journal.getWritten() < ops) {
+			if (journal.getFailure() != null || System.currentTimeMillis() > deadline) {
+				throw new IOException("the journal didn't write every op", journal.getFailure());
+			}
+			Thread.sleep(10);
+		}
+		System.out.printf("%,d ops appended and written in %,d ms%n", ops, (System.nanoTime() - start) / 1_000_000);
+		return sketch.toString();
+	}
+
+	/**
+	 * Deletes the directory under a running writer, has it start a new segment, and times appends after it fails
+	 */
+	private static void failure(Path dir) throws IOException, InterruptedException {
+		OpJournal journal = new OpJournal(dir.toFile(), -1);
+		journal.replay(0, op -> {});
+		journal.start();
+		journal.append("add ellipse 10 10 30 30 0 0");
+
+		delete(dir);
+		journal.roll();
+		journal.append("move 0 1 1");
+		long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+		while (journal.getFailure() == null) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new RuntimeException("the writer didn't notice its directory was gone");
+			}
+			Thread.sleep(10);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < STUCK_APPENDS; i++) {
+			journal.append("move 0 1 1");
+		}
+		System.out.printf("writer failed (%s); %,d appends after it took %,d ms%n",
+				journal.getFailure().getMessage(), STUCK_APPENDS, (System.nanoTime() - start) / 1_000_000);
+	}
+
+	private static void delete(Path dir) throws IOException {
+		if (!Files.exists(dir)) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(dir)) {
+			for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+				Files.delete(path);
+			}
+		}
+	}
+}
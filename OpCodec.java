@@ -0,0 +1,263 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A compact binary form of the sketch ops, used alongside the usual text lines
+ *
+ * A binary frame is a one-byte type tag, a varint payload length, and the payload:
+ *      ADD     shape type byte, varint (ID + 1, or 0 if no ID yet), varint count of coordinates,
+ *              zigzag-varint coordinates (each one as a delta from the coordinate two places before it,
+ *              so x's are deltas of x's and y's of y's), 32-bit RGB
+ *      DELETE  varint ID
+ *      MOVE    varint ID, zigzag-varint dx, zigzag-varint dy
+ *      COLOR   varint ID, 32-bit RGB
+ *      TEXT    a message with no binary form (world snapshots, doodle game messages), as UTF-8
+ *
+ * Tags are all control characters that never start a text line, so a reader can take either a
+ * frame or a text line at any point (see readMessage); that is how old text clients keep working.
+ * A client asks for binary by sending the BINARY line; the server answers with the same line, and
+ * every message it sends after that answer is a frame.
+ *
+ * Frames come from the network, so nothing in one is trusted: a frame that claims too long a payload,
+ * an unknown shape type, or more coordinates than its payload could hold is an IOException.
+ */
+public class OpCodec {
+	public static final String BINARY = "protocol binary";		// the request for, and answer agreeing to, binary frames
+
+	public static final int MAX_PAYLOAD = 1 << 24;		// the longest payload a frame may claim; anything longer is refused, not allocated
+
+	private static final int ADD = 1, DELETE = 2, MOVE = 3, COLOR = 4, TEXT = 5;
+	private static final String[] SHAPE_TYPES = {"ellipse", "rectangle", "segment", "polyline", "triangle"};	// in OpParser's order, from 0
+
+	private static final ThreadLocal<OpParser> parser = ThreadLocal.withInitial(OpParser::new);	// to read the ops to encode, on each writing thread
+
+	/**
+	 * Writes the message, either as a text line or as a binary frame
+	 */
+	public static void writeMessage(OutputStream out, String msg, boolean binary) throws IOException {
+		if (binary) {
+			out.write(encode(msg));
+		}
+		else {
+			out.write(msg.getBytes(StandardCharsets.UTF_8));
+			out.write('\n');
+		}
+	}
+
+	/**
+	 * Reads the next message, whether it was sent as a text line or as a binary frame
+	 * @return the message in its text form, or null at the end of the stream
+	 */
+	public static String readMessage(InputStream in) throws IOException {
+		int first = in.read();
+		if (first == -1) {
+			return null;
+		}
+
+		// a binary frame
+		if (first >= ADD && first <= TEXT) {
+			int length = readVarint(in);
+			if (length < 0 || length > MAX_PAYLOAD) {
+				throw new IOException("frame payload of " + length + " bytes");
+			}
+			byte[] payload = new byte[length];
+			new DataInputStream(in).readFully(payload);
+			return decode(first, payload);
+		}
+
+		// a text line, up to the newline (dropping a carriage return, like BufferedReader.readLine)
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b = first;
+		while (b != '\n' && b != -1) {
+			line.write(b);
+			b = in.read();
+		}
+		byte[] bytes = line.toByteArray();
+		int length = (bytes.length > 0 && bytes[bytes.length - 1] == '\r') ? bytes.length - 1 : bytes.length;
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Turns a text message into a binary frame; anything that isn't a well-formed op is sent as TEXT
+	 */
+	public static byte[] encode(String msg) {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		int tag = encodeOp(msg, parser.get(), payload);
+		if (tag == -1) {
+			payload.reset();
+			payload.writeBytes(msg.getBytes(StandardCharsets.UTF_8));
+			tag = TEXT;
+		}
+
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.size() + 6);
+		frame.write(tag);
+		writeVarint(frame, payload.size());
+		frame.writeBytes(payload.toByteArray());
+		return frame.toByteArray();
+	}
+
+	/**
+	 * Writes the payload of an op into out, reading the message with the parser
+	 * @return the tag for the op, or -1 if it has no binary form (then out may hold part of one)
+	 */
+	private static int encodeOp(String msg, OpParser parser, ByteArrayOutputStream out) {
+		parser.reset(msg);
+		int op = parser.nextOp();
+		if (op == OpParser.ADD) {
+			int type = parser.nextShapeType();
+			int numbers = parser.readInts();
+			if (parser.hasError() || numbers < 1) {
+				return -1;
+			}
+			// coordinates then an RGB come out to an odd count; an even count means the server tacked on an ID
+			boolean hasID = numbers % 2 == 0;
+			int count = hasID ? numbers - 2 : numbers - 1;
+			int ID = hasID ? parser.value(numbers - 1) : -1;
+			if (hasID && ID == -1) {
+				// would read back as no ID at all
+				return -1;
+			}
+
+			out.write(type - 1);
+			writeVarint(out, ID + 1);
+			writeVarint(out, count);
+			for (int i = 0; i < count; i++) {
+				int previous = i >= 2 ? parser.value(i - 2) : 0;
+				writeVarint(out, zigzag(parser.value(i) - previous));
+			}
+			writeInt(out, parser.value(count));
+			return ADD;
+		}
+		else if (op == OpParser.DELETE) {
+			int id = parser.nextInt();
+			if (!parser.finished()) {
+				return -1;
+			}
+			writeVarint(out, id);
+			return DELETE;
+		}
+		else if (op == OpParser.MOVE) {
+			int id = parser.nextInt();
+			int dx = parser.nextInt();
+			int dy = parser.nextInt();
+			if (!parser.finished()) {
+				return -1;
+			}
+			writeVarint(out, id);
+			writeVarint(out, zigzag(dx));
+			writeVarint(out, zigzag(dy));
+			return MOVE;
+		}
+		else if (op == OpParser.COLOR) {
+			int id = parser.nextInt();
+			int rgb = parser.nextInt();
+			if (!parser.finished()) {
+				return -1;
+			}
+			writeVarint(out, id);
+			writeInt(out, rgb);
+			return COLOR;
+		}
+		return -1;
+	}
+
+	/**
+	 * Turns a binary frame back into the text message it stands for
+	 * @throws IOException if the frame is malformed
+	 */
+	public static String decode(int tag, byte[] payload) throws IOException {
+		if (tag == TEXT) {
+			return new String(payload, StandardCharsets.UTF_8);
+		}
+
+		InputStream in = new ByteArrayInputStream(payload);
+		StringBuilder msg = new StringBuilder();
+		if (tag == ADD) {
+			int type = in.read();
+			if (type < 0 || type >= SHAPE_TYPES.length) {
+				throw new IOException("unknown shape type " + type);
+			}
+			int ID = readVarint(in) - 1;
+			int count = readVarint(in);
+			// each coordinate takes at least a byte, so the payload left bounds how many there can be
+			if (count < 0 || count > in.available()) {
+				throw new IOException("frame claims " + count + " coordinates");
+			}
+			int[] values = new int[count];
+
+			msg.append("add ").append(SHAPE_TYPES[type]);
+			for (int i = 0; i < count; i++) {
+				values[i] = unzigzag(readVarint(in)) + (i >= 2 ? values[i - 2] : 0);
+				msg.append(' ').append(values[i]);
+			}
+			msg.append(' ').append(readInt(in));
+			if (ID != -1) {
+				msg.append(' ').append(ID);
+			}
+		}
+		else if (tag == DELETE) {
+			msg.append("delete ").append(readVarint(in));
+		}
+		else if (tag == MOVE) {
+			msg.append("move ").append(readVarint(in));
+			msg.append(' ').append(unzigzag(readVarint(in)));
+			msg.append(' ').append(unzigzag(readVarint(in)));
+		}
+		else if (tag == COLOR) {
+			msg.append("color ").append(readVarint(in));
+			msg.append(' ').append(readInt(in));
+		}
+		else {
+			throw new IOException("unknown frame tag " + tag);
+		}
+		return msg.toString();
+	}
+
+	/**
+	 * Maps signed ints to unsigned ones so small negatives stay small: 0, -1, 1, -2, ... become 0, 1, 2, 3, ...
+	 */
+	private static int zigzag(int n) {
+		return (n << 1) ^ (n >> 31);
+	}
+
+	private static int unzigzag(int n) {
+		return (n >>> 1) ^ -(n & 1);
+	}
+
+	/**
+	 * Writes an (unsigned) int seven bits at a time, low bits first; the top bit of each byte means "more follows"
+	 */
+	private static void writeVarint(ByteArrayOutputStream out, int n) {
+		while ((n & ~0x7F) != 0) {
+			out.write((n & 0x7F) | 0x80);
+			n >>>= 7;
+		}
+		out.write(n);
+	}
+
+	private static int readVarint(InputStream in) throws IOException {
+		int n = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.read();
+			if (b == -1) {
+				throw new EOFException();
+			}
+			n |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return n;
+			}
+		}
+		throw new IOException("malformed varint");
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, int n) {
+		out.write(n >>> 24);
+		out.write(n >>> 16);
+		out.write(n >>> 8);
+		out.write(n);
+	}
+
+	private static int readInt(InputStream in) throws IOException {
+		return new DataInputStream(in).readInt();
+	}
+}
@@ -0,0 +1,373 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only record of every op the server applied, so the world can be rebuilt after a restart
+ *
+ * The journal is a directory of fixed-size, memory-mapped segment files, each named after the sequence number
+ * of its first op. Each op is written as its OpCodec frame followed by a CRC32 of the frame; a zero byte
+ * where the next frame would start marks the end of the journal, and a SKIP byte the end of a segment.
+ * A crash can at worst leave a partly written op at the very end, which fails its check and is dropped.
+ *
+ * The sequencer only hands ops over (append); a background thread writes them, and forces them to disk
+ * in groups: after every batch it takes, at most once per interval, or never (leaving it to the OS).
+ *
+ * Once a checkpoint holds the world as of some op, the segments before it are no longer needed:
+ * roll starts a new segment right at that op, and truncate deletes the ones before it.
+ *
+ * If the writer can't write (a full disk, a segment it can't create), it stops for good and says so;
+ * from then on appended ops are dropped rather than left to fill the queue and hold up the sequencer.
+ */
+public class OpJournal {
+	public static final int SEGMENT_SIZE = 64 * 1024 * 1024;	// bytes in each segment file (unless one op needs more)
+	public static final int QUEUE_CAPACITY = 65536;				// ops waiting to be written before append has to wait
+	private static final byte SKIP = (byte) 0xFF;				// the rest of this segment is unused; go on to the next
+	private static final String SUFFIX = ".journal";
+	private static final String ROLL = new String("roll");		// queued (by identity) to start a new segment
+
+	private final Path dir;							// where the segments are
+	private volatile long fsyncNanos;				// force at most this often (0: after every batch, negative: never)
+	private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);	// ops waiting to be written
+	private Thread writer;							// writes the queued ops
+	private long appended;							// the sequence number the next appended op will get (only touched by the sequencer)
+
+	// Only touched by the writer (or before it starts)
+	private FileChannel channel;					// the segment being written
+	private MappedByteBuffer segment;				// and its mapping
+	private long segmentStart;						// the sequence number of its first op
+	private long nextSeq;							// the sequence number the next op will get
+	private long lastForce;							// when the segment was last forced to disk
+	private volatile long written = 0;				// how many ops have been written (not necessarily forced)
+	private volatile IOException failure;			// why the writer stopped, if it did
+
+	/**
+	 * Opens (or creates) the journal in the directory; call replay before start
+	 * @param fsyncMillis force written ops to disk at most this often; 0 forces after every batch, negative never
+	 */
+	public OpJournal(File dir, long fsyncMillis) throws IOException {
+		this.dir = dir.toPath();
+		Files.createDirectories(this.dir);
+		setFsyncMillis(fsyncMillis);
+	}
+
+	/**
+	 * @param millis force written ops to disk at most this often; 0 forces after every batch, negative never
+	 */
+	public void setFsyncMillis(long millis) {
+		fsyncNanos = millis < 0 ? -1 : millis * 1_000_000;
+	}
+
+	/**
+	 * How many ops have been written since start
+	 */
+	public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * Why the writer stopped, if it did (then nothing appended since has been recorded)
+	 * @return the error, or null if it is still writing
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * The sequence number the next appended op will get (only for the sequencer, e.g. to mark where a checkpoint is)
+	 */
+	public long getAppended() {
+		return appended;
+	}
+
+	/**
+	 * Runs every op in the journal from sequence number from on, in order, through the handler,
+	 * and gets ready to add to the end of it
+	 * @param from the first op wanted (those before it are already in a checkpoint)
+	 * @return how many ops were run
+	 */
+	public long replay(long from, Consumer<String> handler) throws IOException {
+		long count = 0;
+		Path[] segments = segments();
+		for (int i = 0; i < segments.length; i++) {
+			long start = startOf(segments[i]);
+			boolean last = i == segments.length - 1;
+
+			// a segment that ends before from has nothing to run (unless it's where new ops go)
+			if (!last && startOf(segments[i + 1]) <= from) {
+				continue;
+			}
+			try (FileChannel in = FileChannel.open(segments[i], StandardOpenOption.READ)) {
+				MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+				long seq = start;
+				String op;
+				while ((op = readOp(buffer)) != null) {
+					if (seq >= from) {
+						handler.accept(op);
+						count++;
+					}
+					seq++;
+				}
+
+				// the last segment is where new ops go
+				if (last) {
+					openSegment(segments[i], 0);
+					segment.position(buffer.position());
+					segmentStart = start;
+					nextSeq = seq;
+				}
+			}
+		}
+		if (segments.length == 0) {
+			nextSeq = 0;
+		}
+
+		// ops the checkpoint has but the journal lost (never forced): carry on numbering after them, in a new segment
+		if (nextSeq < from) {
+			nextSeq = from;
+			if (channel != null) {
+				channel.close();
+				channel = null;
+				segment = null;
+			}
+		}
+		appended = nextSeq;
+		return count;
+	}
+
+	/**
+	 * Starts the thread that writes appended ops
+	 */
+	public void start() throws IOException {
+		if (segment == null) {
+			newSegment(0);
+		}
+		clearTail();
+		writer = new Thread(this::drain, "sketch-journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Hands an applied op over to be written; only waits if the writer is a whole queue behind
+	 * (and never once the writer has stopped: see getFailure)
+	 */
+	public void append(String op) {
+		appended++;
+		queue(op);
+	}
+
+	/**
+	 * Has the writer start a new segment at the next op appended (unless the current one is still empty),
+	 * so that a checkpoint taken now lets every segment before it go
+	 */
+	public void roll() {
+		queue(ROLL);
+	}
+
+	private void queue(String op) {
+		if (failure != null) {
+			return;
+		}
+		try {
+			queue.put(op);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Deletes the segments whose ops all come before seq (because a checkpoint has them)
+	 * @return how many were deleted
+	 */
+	public int truncate(long seq) throws IOException {
+		int deleted = 0;
+		Path[] segments = segments();
+		for (int i = 0; i + 1 < segments.length && startOf(segments[i + 1]) <= seq; i++) {
+			if (Files.deleteIfExists(segments[i])) {
+				deleted++;
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Writes whatever has been appended, forcing it to disk according to the policy
+	 */
+	private void drain() {
+		ArrayList<String> batch = new ArrayList<>();
+		try {
+			while (true) {
+				batch.add(queue.take());
+				queue.drainTo(batch);
+				long ops = 0;
+				for (String op : batch) {
+					if (op == ROLL) {
+						if (nextSeq > segmentStart) {
+							endSegment();
+							newSegment(0);
+						}
+						continue;
+					}
+					write(op);
+					ops++;
+				}
+				written += ops;
+				batch.clear();
+
+				long now = System.nanoTime();
+				if (fsyncNanos == 0 || (fsyncNanos > 0 && now - lastForce >= fsyncNanos)) {
+					segment.force();
+					lastForce = now;
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			// shutting down
+		}
+		catch (IOException e) {
+			// let go of the sequencer if it is waiting on a full queue; it won't queue any more after this
+			failure = e;
+			queue.clear();
+			System.err.println("journal stopped, ops from now on are NOT recorded: " + e);
+		}
+	}
+
+	/**
+	 * Writes one op at the end of the journal, going on to a new segment if it doesn't fit
+	 */
+	private void write(String op) throws IOException {
+		byte[] frame = OpCodec.encode(op);
+		int needed = frame.length + 4 + 1;		// the op, its check, and room for an end marker after
+		if (segment.remaining() < needed) {
+			endSegment();
+			newSegment(needed);
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(frame);
+		segment.put(frame);
+		segment.putInt((int) crc.getValue());
+		nextSeq++;
+	}
+
+	/**
+	 * Reads the op at the buffer's position and moves past it
+	 * @return the op, or null at the end of the segment (or at an op that was only partly written)
+	 */
+	private static String readOp(MappedByteBuffer buffer) throws IOException {
+		if (!buffer.hasRemaining()) {
+			return null;
+		}
+		int start = buffer.position();
+		byte tag = buffer.get(start);
+		if (tag == 0 || tag == SKIP) {
+			return null;
+		}
+
+		// the frame's length, as OpCodec wrote it
+		int length = 0, shift = 0, at = start + 1;
+		while (true) {
+			if (at >= buffer.limit() || shift > 28) {
+				return null;
+			}
+			int b = buffer.get(at++);
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+			shift += 7;
+		}
+		int payloadStart = at;
+		if (length < 0 || (long) payloadStart + length + 4 > buffer.limit()) {
+			return null;
+		}
+
+		// check the frame before trusting it
+		byte[] frame = new byte[payloadStart - start + length];
+		buffer.get(start, frame);
+		CRC32 crc = new CRC32();
+		crc.update(frame);
+		if ((int) crc.getValue() != buffer.getInt(payloadStart + length)) {
+			return null;
+		}
+
+		buffer.position(payloadStart + length + 4);
+		return OpCodec.decode(tag, Arrays.copyOfRange(frame, payloadStart - start, frame.length));
+	}
+
+	/**
+	 * Marks the rest of the segment as unused and forces it to disk, before going on to the next
+	 */
+	private void endSegment() {
+		if (segment.hasRemaining()) {
+			segment.put(SKIP);
+		}
+		segment.force();
+	}
+
+	/**
+	 * Starts a new segment for the ops from nextSeq on
+	 * @param needed how many bytes it must have room for at least
+	 */
+	private void newSegment(int needed) throws IOException {
+		Path path = dir.resolve(String.format("%020d", nextSeq) + SUFFIX);
+		openSegment(path, Math.max(SEGMENT_SIZE, needed));
+		segmentStart = nextSeq;
+	}
+
+	/**
+	 * Maps a segment file for writing
+	 * @param size how big to make it, if it is new (0 to keep its size)
+	 */
+	private void openSegment(Path path, int size) throws IOException {
+		if (channel != null) {
+			channel.close();
+		}
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long length = size > 0 ? size : channel.size();
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+	}
+
+	/**
+	 * Zeroes the segment from the write position on, so anything left after a torn op can't be read as ops later
+	 */
+	private void clearTail() {
+		for (int i = segment.position(); i < segment.limit(); i++) {
+			if (segment.get(i) != 0) {
+				segment.put(i, (byte) 0);
+			}
+		}
+	}
+
+	/**
+	 * The segment files, oldest first
+	 */
+	private Path[] segments() throws IOException {
+		ArrayList<Path> paths = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+			for (Path path : files) {
+				paths.add(path);
+			}
+		}
+		Path[] sorted = paths.toArray(new Path[0]);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	/**
+	 * The sequence number of the first op in a segment, from its name
+	 */
+	private static long startOf(Path segment) {
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+	}
+}
@@ -0,0 +1,240 @@
+import java.awt.Color;
+
+/**
+ * Reads ops and shapes straight out of a message, one space-separated token at a time,
+ * without splitting it into strings or parsing through Integer
+ *
+ * Anything malformed (a missing or non-numeric token, an unknown op or shape) sets an error flag
+ * instead of throwing, so a bad message can be skipped without killing the connection.
+ * A parser keeps its position between calls, so each one must only be used by one thread.
+ */
+public class OpParser {
+	// the ops
+	public static final int UNKNOWN = 0, ADD = 1, DELETE = 2, MOVE = 3, COLOR = 4;
+	private static final String[] OPS = {null, "add", "delete", "move", "color"};
+
+	// the shape types
+	public static final int ELLIPSE = 1, RECTANGLE = 2, SEGMENT = 3, POLYLINE = 4, TRIANGLE = 5;
+	private static final String[] SHAPES = {null, "ellipse", "rectangle", "segment", "polyline", "triangle"};
+
+	private static final Color[] colors = new Color[1024];	// recently seen colors, so each op doesn't make a new one
+	private static final long MOST_BEFORE_DIGIT = (Long.MAX_VALUE - 9) / 10;	// a number bigger than this may overflow with another digit
+
+	private String line;			// the message being read
+	private int pos, end;			// where we are in it, and where to stop
+	private boolean error;			// whether anything so far was malformed
+	private int[] values = new int[64];		// numbers read by readInts, reused between messages
+
+	/**
+	 * Starts reading a new message
+	 */
+	public void reset(String line) {
+		reset(line, 0, line.length());
+	}
+
+	/**
+	 * Starts reading the part of a message from start up to (not including) end
+	 */
+	public void reset(String line, int start, int end) {
+		this.line = line;
+		this.pos = start;
+		this.end = end;
+		error = false;
+	}
+
+	/**
+	 * Whether anything read so far was malformed
+	 */
+	public boolean hasError() {
+		return error;
+	}
+
+	/**
+	 * Whether everything was read without error, with nothing left over
+	 */
+	public boolean finished() {
+		skipSpaces();
+		return !error && pos == end;
+	}
+
+	/**
+	 * @return which op the next token names, or UNKNOWN
+	 */
+	public int nextOp() {
+		return nextWord(OPS);
+	}
+
+	/**
+	 * @return which shape type the next token names, or UNKNOWN
+	 */
+	public int nextShapeType() {
+		return nextWord(SHAPES);
+	}
+
+	/**
+	 * Reads the next token as an int
+	 */
+	public int nextInt() {
+		long n = nextLong();
+		if (n < Integer.MIN_VALUE || n > Integer.MAX_VALUE) {
+			error = true;
+			return 0;
+		}
+		return (int) n;
+	}
+
+	/**
+	 * Reads the next token as a long (a sequence number, say)
+	 */
+	public long nextLong() {
+		skipSpaces();
+		boolean negative = false;
+		if (pos < end && line.charAt(pos) == '-') {
+			negative = true;
+			pos++;
+		}
+
+		int start = pos;
+		long n = 0;
+		while (pos < end) {
+			char c = line.charAt(pos);
+			if (c < '0' || c > '9') {
+				break;
+			}
+			if (n > MOST_BEFORE_DIGIT) {
+				error = true;
+			}
+			else {
+				n = n * 10 + (c - '0');
+			}
+			pos++;
+		}
+
+		// there has to be at least one digit, and the token has to end there
+		if (pos == start || (pos < end && line.charAt(pos) != ' ')) {
+			error = true;
+			return 0;
+		}
+		return negative ? -n : n;
+	}
+
+	/**
+	 * Reads all of the remaining tokens as ints
+	 * @return how many there were; get them with value(i)
+	 */
+	public int readInts() {
+		int count = 0;
+		skipSpaces();
+		while (pos < end && !error) {
+			if (count == values.length) {
+				int[] bigger = new int[values.length * 2];
+				System.arraycopy(values, 0, bigger, 0, count);
+				values = bigger;
+			}
+			values[count++] = nextInt();
+			skipSpaces();
+		}
+		return count;
+	}
+
+	/**
+	 * Reads an add message as far as its ID: coordinates and an RGB come to an odd count, so an even count ends in an ID
+	 * @return the ID, or -1 if the message isn't a well-formed add or has no ID yet
+	 */
+	public int addID(String line) {
+		reset(line);
+		if (nextOp() != ADD || nextShapeType() == UNKNOWN) {
+			return -1;
+		}
+		int count = readInts();
+		if (error || count < 3 || count % 2 == 1) {
+			return -1;
+		}
+		return values[count - 1];
+	}
+
+	/**
+	 * @return the ith number read by readInts
+	 */
+	public int value(int i) {
+		return values[i];
+	}
+
+	/**
+	 * Makes a shape out of the first count numbers read by readInts
+	 * (two corners, or x1 x2 y h for a triangle, or every joint of a polyline)
+	 * @return the shape, or null if those numbers don't fit the type
+	 */
+	public Shape buildShape(int type, int count, int rgb) {
+		Color color = color(rgb);
+		if (type == POLYLINE) {
+			if (count % 2 != 0) {
+				return null;
+			}
+			Polyline polyline = new Polyline();
+			for (int i = 0; i < count; i += 2) {
+				polyline.addPoints(values[i], values[i + 1]);
+			}
+			polyline.setColor(color);
+			return polyline;
+		}
+
+		if (count != 4) {
+			return null;
+		}
+		if (type == ELLIPSE) {
+			return new Ellipse(values[0], values[1], values[2], values[3], color);
+		}
+		else if (type == RECTANGLE) {
+			return new Rectangle(values[0], values[1], values[2], values[3], color);
+		}
+		else if (type == SEGMENT) {
+			return new Segment(values[0], values[1], values[2], values[3], color);
+		}
+		else if (type == TRIANGLE) {
+			return new Triangle(values[0], values[1], values[2], values[3], color);
+		}
+		return null;
+	}
+
+	/**
+	 * A Color for the RGB value, reusing one made earlier when possible (Colors never change)
+	 */
+	public static Color color(int rgb) {
+		rgb &= 0xFFFFFF;		// like new Color(rgb), ignore the alpha
+		int slot = (rgb ^ (rgb >>> 10) ^ (rgb >>> 20)) & (colors.length - 1);
+		Color color = colors[slot];
+		if (color == null || (color.getRGB() & 0xFFFFFF) != rgb) {
+			color = new Color(rgb);
+			colors[slot] = color;
+		}
+		return color;
+	}
+
+	/**
+	 * Matches the next token against the words (skipping index 0), comparing in place
+	 * @return the index of the matching word, or UNKNOWN
+	 */
+	private int nextWord(String[] words) {
+		skipSpaces();
+		int start = pos;
+		while (pos < end && line.charAt(pos) != ' ') {
+			pos++;
+		}
+		int length = pos - start;
+
+		for (int i = 1; i < words.length; i++) {
+			if (words[i].length() == length && line.regionMatches(start, words[i], 0, length)) {
+				return i;
+			}
+		}
+		error = true;
+		return UNKNOWN;
+	}
+
+	private void skipSpaces() {
+		while (pos < end && line.charAt(pos) == ' ') {
+			pos++;
+		}
+	}
+}
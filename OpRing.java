@@ -0,0 +1,137 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A fixed-size ring of pending events, written by many threads and read by exactly one
+ *
+ * Producers claim the next sequence number, fill that slot and then mark it published;
+ * the single consumer takes slots strictly in sequence order, which gives every event a total order
+ * without any thread holding a lock. All slots are allocated up front.
+ * An idle consumer sleeps until a producer publishes (see await), so an empty ring costs no CPU.
+ */
+public class OpRing {
+	private final Object[] slots;				// the events themselves
+	private final AtomicLongArray published;	// the sequence number last published into each slot
+	private final int mask;						// size - 1, for cheap wrap-around (size is a power of two)
+
+	private final AtomicLong claimed = new AtomicLong(0);	// next sequence number a producer may claim
+	private volatile long consumed = -1;					// last sequence number the consumer has finished with
+	private long next = 0;									// next sequence number the consumer will take (consumer only)
+	private volatile Thread waiting;						// the consumer, while it is asleep waiting for the next event
+
+	/**
+	 * @param size how many events may be waiting at once; rounded up to a power of two
+	 */
+	public OpRing(int size) {
+		int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+		slots = new Object[capacity];
+		published = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			published.set(i, -1);
+		}
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Adds an event to the ring, waiting if the consumer is a whole ring behind
+	 */
+	public void publish(Object event) {
+		long seq = claimed.getAndIncrement();
+
+		// wait for the consumer to free up this slot
+		for (int spins = 0; seq - slots.length > consumed; spins++) {
+			backOff(spins);
+		}
+
+		int index = (int) (seq & mask);
+		slots[index] = event;
+		published.set(index, seq);		// makes the slot visible to the consumer
+
+		// wake the consumer if it went to sleep waiting for this
+		Thread consumer = waiting;
+		if (consumer != null) {
+			LockSupport.unpark(consumer);
+		}
+	}
+
+	/**
+	 * Takes the next event in sequence order, waiting until it is published
+	 * Must only ever be called from one thread
+	 */
+	public Object take() {
+		int index = (int) (next & mask);
+		await(index, false, 0);
+
+		Object event = slots[index];
+		slots[index] = null;
+		consumed = next;
+		next++;
+		return event;
+	}
+
+	/**
+	 * Like take, but gives up after the timeout
+	 * @return the next event, or null if none was published in time
+	 */
+	public Object poll(long timeoutNanos) {
+		int index = (int) (next & mask);
+		if (!await(index, true, System.nanoTime() + timeoutNanos)) {
+			return null;
+		}
+		return take();
+	}
+
+	/**
+	 * Waits for the next event to be published into the slot: busy-spin briefly, then yield,
+	 * then sleep until a producer wakes us (consumer only)
+	 * @return whether it was published, or false if the deadline passed first
+	 */
+	private boolean await(int index, boolean timed, long deadline) {
+		for (int spins = 0; published.get(index) != next; spins++) {
+			if (timed && System.nanoTime() - deadline >= 0) {
+				return false;
+			}
+			if (spins < 200) {
+				backOff(spins);
+				continue;
+			}
+
+			// say we're asleep before the last look, so a producer either sees us waiting or we see its event
+			waiting = Thread.currentThread();
+			if (published.get(index) != next) {
+				if (timed) {
+					LockSupport.parkNanos(this, deadline - System.nanoTime());
+				}
+				else {
+					LockSupport.park(this);
+				}
+			}
+			waiting = null;
+		}
+		return true;
+	}
+
+	/**
+	 * How many events are waiting to be taken
+	 */
+	public long size() {
+		return claimed.get() - (consumed + 1);
+	}
+
+	/**
+	 * Busy-spin briefly, then yield, then sleep for short intervals
+	 * (how a producer waits for room in a full ring, which only happens while the consumer is busy)
+	 */
+	private static void backOff(int spins) {
+		if (spins < 100) {
+			Thread.onSpinWait();
+		}
+		else if (spins < 200) {
+			Thread.yield();
+		}
+		else {
+			LockSupport.parkNanos(50_000);
+		}
+	}
+}
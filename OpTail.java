@@ -0,0 +1,55 @@
+import java.util.ArrayList;
+
+/**
+ * The most recent ops the server broadcast, by sequence number, so a client that lost its connection
+ * can be sent just the ones it missed instead of the whole world again
+ *
+ * Every op broadcast gets the next sequence number, counting from 1 in each run of the server (its epoch).
+ * A client learns where it is from the POSITION message sent with its snapshot, "position <epoch> <seq>"
+ * (the next op it gets is seq + 1), counts every op after that, and catches up with each ack, which carries
+ * the sequence number as of the client's op (see ClientOp). To reconnect it sends "resume <epoch> <seq>"
+ * as its first message; if the server is the same run and still has every op after seq, it sends those,
+ * and otherwise a fresh position and snapshot. Only used by the sequencer.
+ */
+public class OpTail {
+	public static final String POSITION = "position", RESUME = "resume";
+
+	private final String[] ops;		// the op with sequence number seq is in ops[seq % length]
+	private long last = 0;			// the sequence number of the newest op
+
+	public OpTail(int capacity) {
+		ops = new String[capacity];
+	}
+
+	/**
+	 * Adds the next op broadcast
+	 * @return its sequence number
+	 */
+	public long add(String op) {
+		last++;
+		ops[(int) (last % ops.length)] = op;
+		return last;
+	}
+
+	/**
+	 * The sequence number of the newest op (0 if none yet)
+	 */
+	public long last() {
+		return last;
+	}
+
+	/**
+	 * The ops after the one with sequence number seq, oldest first
+	 * @return the ops, or null if some of them are no longer kept (or seq is from the future)
+	 */
+	public ArrayList<String> since(long seq) {
+		if (seq < 0 || seq > last || last - seq > ops.length) {
+			return null;
+		}
+		ArrayList<String> missed = new ArrayList<>((int) (last - seq));
+		for (long i = seq + 1; i <= last; i++) {
+			missed.add(ops[(int) (i % ops.length)]);
+		}
+		return missed;
+	}
+}
@@ -1,6 +1,5 @@
 import java.awt.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Edited by: Maria Paula Mora
@@ -12,22 +11,38 @@ import java.util.List;
  */
 public class Polyline implements Shape {
 
-	private ArrayList<Point> joints; 		// a list of all of the points of the polyline
-	private Color color;										// the color of the shape
+	private int[] xs, ys;			// the x and y of every joint of the polyline, in order (only the first count are used)
+	private int count;				// how many joints there are
+	private Color color;			// the color of the shape
+
+	// Moves only add up here, so moving a long stroke doesn't touch every joint;
+	// the joints are really at xs + dx, ys + dy
+	private static final int FOLD_LIMIT = 1 << 20;	// fold the offset into the joints once it gets this far, to keep clear of overflow
+	private int dx, dy;				// how far the joints have moved since they were last updated
+	private boolean shared;			// whether a copy uses the same arrays (so they must be copied before changing)
+	private java.awt.Rectangle box;	// the box around the joints (before the offset), kept until a joint is added
+
+	// Boxes around runs of segments, and around pairs of those and so on up, so contains only checks
+	// the segments near the point; made when first needed after a joint is added
+	private static final int RUN = 32;		// segments in each of the smallest boxes
+	private static final int TOLERANCE = 5;	// how close (less than) a point has to be to a segment to be in the polyline
+	private int[] tree;				// minX, minY, maxX, maxY of each box; box k holds boxes 2k and 2k+1, the runs are the last half
+	private int leaves;				// how many run boxes there is room for (a power of two)
 
 	/**
 	 * An "empty" Polyline, with no points set so far
 	 */
 	public Polyline() {
-		joints = new ArrayList<>();
+		xs = new int[8];
+		ys = new int[8];
 	}
 
 	/**
 	 * An "empty" Polyline, with only one point set so far
 	 */
 	public Polyline (int x1, int y1, Color color) {
-		joints = new ArrayList<>();
-		joints.add(new Point(x1, y1));
+		this();
+		addPoints(x1, y1);
 		this.color = color;
 	}
 
@@ -36,10 +51,37 @@ public class Polyline implements Shape {
 	 */
 	@Override
 	public void moveBy(int dx, int dy) {
-		// for every joint that the polyline has
-		for (Point p : joints) {
-			p.x = (int) (p.getX() + dx);
-			p.y = (int) (p.getY() + dy);
+		// just remember how far, unless it has gotten far enough to update every joint
+		this.dx += dx;
+		this.dy += dy;
+		if (Math.abs(this.dx) >= FOLD_LIMIT || Math.abs(this.dy) >= FOLD_LIMIT) {
+			fold();
+		}
+	}
+
+	/**
+	 * Update every joint by the offset, and start it over
+	 */
+	private void fold() {
+		own();
+		for (int i = 0; i < count; i++) {
+			xs[i] += dx;
+			ys[i] += dy;
+		}
+		dx = 0;
+		dy = 0;
+		box = null;
+		tree = null;
+	}
+
+	/**
+	 * Make sure no copy shares the arrays, before changing them
+	 */
+	private void own() {
+		if (shared) {
+			xs = Arrays.copyOf(xs, xs.length);
+			ys = Arrays.copyOf(ys, ys.length);
+			shared = false;
 		}
 	}
 
@@ -47,8 +89,23 @@ public class Polyline implements Shape {
 	 * add more points to the Polyline joints
 	 */
 	public void addPoints(int x, int y) {
+		// joints are kept before the offset
+		x -= dx;
+		y -= dy;
+		own();
+		box = null;
+		tree = null;
+
+		// make room for the new point, doubling so a long stroke is copied only a few times
+		if (count == xs.length) {
+			xs = Arrays.copyOf(xs, count * 2);
+			ys = Arrays.copyOf(ys, count * 2);
+		}
+
 		// add the new point to the list of joints
-		joints.add(new Point(x, y));
+		xs[count] = x;
+		ys[count] = y;
+		count++;
 	}
 
 	/**
@@ -62,59 +119,164 @@ public class Polyline implements Shape {
 
 	/**
 	 * Check if a point is contained by the Polyline
+	 * A point outside the box around it is turned away straight off; otherwise only the runs of segments
+	 * whose boxes hold the point are checked
 	 */
 	@Override
 	public boolean contains(int x, int y) {
+		if (count < 2) {
+			return false;
+		}
+
+		// move the point back by the offset instead of moving every joint
+		x -= dx;
+		y -= dy;
+		if (!box().contains(x, y)) {
+			return false;
+		}
+		if (tree == null) {
+			buildTree();
+		}
+		return search(1, x, y);
+	}
 
-		// for every joint that the polyline has
-		for (int i = 0; i < joints.size() - 1; i++) {
-			// find the segments of the polyline
-			Point p1 = joints.get(i);
-			Point p2 = joints.get(i+1);
+	/**
+	 * Whether the point is near any segment inside box k of the tree
+	 */
+	private boolean search(int k, int x, int y) {
+		int at = k * 4;
+		if (x < tree[at] || y < tree[at + 1] || x > tree[at + 2] || y > tree[at + 3]) {
+			return false;
+		}
 
-			// calculate the distance between the point and the segments
-			double distance = Segment.pointToSegmentDistance(x, y, (int) p1.getX(), (int) p1.getY(), (int) p2.getX(), (int) p2.getY());
+		// a box around two smaller boxes: check those
+		if (k < leaves) {
+			return search(2 * k, x, y) || search(2 * k + 1, x, y);
+		}
 
-			// if the distance is less than 5 (it contains the point)
+		// a run: check its segments
+		int first = (k - leaves) * RUN, last = Math.min(first + RUN, count - 1);
+		for (int i = first; i < last; i++) {
+			// compare squared distances, to skip the square root
 			// if it's 0 the precision is too small (difficult to find), so we chose less than 5
-			if (distance < 5) {
+			if (Segment.pointToSegmentDistance2(x, y, xs[i], ys[i], xs[i + 1], ys[i + 1]) < TOLERANCE * TOLERANCE) {
 				return true;
 			}
 		}
-
-		// not found in any segment
 		return false;
 	}
 
 	/**
-	 * Draw the shape
+	 * Make the boxes: each run's from its joints (widened by the tolerance), then each bigger one from the two below it
+	 */
+	private void buildTree() {
+		int runs = (count - 1 + RUN - 1) / RUN;
+		leaves = Integer.highestOneBit(Math.max(1, runs - 1)) << 1;
+		if (runs == 1) {
+			leaves = 1;
+		}
+		int[] boxes = new int[leaves * 2 * 4];
+
+		for (int k = leaves; k < 2 * leaves; k++) {
+			int at = k * 4;
+			int first = (k - leaves) * RUN, last = Math.min(first + RUN, count - 1);
+			if (first >= last) {
+				// no run here: a box nothing is inside
+				boxes[at] = boxes[at + 1] = Integer.MAX_VALUE;
+				boxes[at + 2] = boxes[at + 3] = Integer.MIN_VALUE;
+				continue;
+			}
+			int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+			for (int i = first; i <= last; i++) {
+				minX = Math.min(minX, xs[i]); maxX = Math.max(maxX, xs[i]);
+				minY = Math.min(minY, ys[i]); maxY = Math.max(maxY, ys[i]);
+			}
+			boxes[at] = minX - TOLERANCE; boxes[at + 1] = minY - TOLERANCE;
+			boxes[at + 2] = maxX + TOLERANCE; boxes[at + 3] = maxY + TOLERANCE;
+		}
+
+		for (int k = leaves - 1; k >= 1; k--) {
+			int at = k * 4, left = 2 * k * 4, right = (2 * k + 1) * 4;
+			boxes[at] = Math.min(boxes[left], boxes[right]);
+			boxes[at + 1] = Math.min(boxes[left + 1], boxes[right + 1]);
+			boxes[at + 2] = Math.max(boxes[left + 2], boxes[right + 2]);
+			boxes[at + 3] = Math.max(boxes[left + 3], boxes[right + 3]);
+		}
+		tree = boxes;
+	}
+
+	/**
+	 * Draw the shape, all the segments in one call
 	 */
 	@Override
 	public void draw(Graphics g) {
 		g.setColor(color);
+		g.translate(dx, dy);
+		g.drawPolyline(xs, ys, count);
+		g.translate(-dx, -dy);
+	}
 
-		// for every joint
-		for (int i = 0; i < joints.size() - 1; i++) {
-			Point p1 = joints.get(i);
-			Point p2 = joints.get(i + 1);
+	/**
+	 * The box around every joint, widened by the distance contains allows
+	 * Only worked out again after a joint is added; moves just shift it
+	 */
+	@Override
+	public java.awt.Rectangle getBounds() {
+		if (count == 0) {
+			return new java.awt.Rectangle();
+		}
+		java.awt.Rectangle box = box();
+		return new java.awt.Rectangle(box.x + dx, box.y + dy, box.width, box.height);
+	}
 
-			// draw a line between them
-			g.drawLine((int) p1.getX(), (int) p1.getY(), (int) p2.getX(), (int) p2.getY());
+	/**
+	 * The box around the joints before the offset, worked out if a joint was added since the last time
+	 */
+	private java.awt.Rectangle box() {
+		if (box == null) {
+			int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+			for (int i = 0; i < count; i++) {
+				minX = Math.min(minX, xs[i]); maxX = Math.max(maxX, xs[i]);
+				minY = Math.min(minY, ys[i]); maxY = Math.max(maxY, ys[i]);
+			}
+			box = new java.awt.Rectangle(minX - TOLERANCE, minY - TOLERANCE, maxX - minX + 2 * TOLERANCE + 1, maxY - minY + 2 * TOLERANCE + 1);
 		}
+		return box;
+	}
+
+	/**
+	 * Share the joints with the copy (whichever changes them first copies them), so this is quick however long the stroke
+	 */
+	@Override
+	public Shape copy() {
+		Polyline copy = new Polyline();
+		copy.xs = xs;
+		copy.ys = ys;
+		copy.count = count;
+		copy.dx = dx;
+		copy.dy = dy;
+		copy.box = box;
+		copy.tree = tree;
+		copy.leaves = leaves;
+		copy.setColor(color);
+		shared = true;
+		copy.shared = true;
+		return copy;
 	}
 
 	/**
-	 * Return a string for the Polyline
+	 * Return a string for the Polyline, with the joints where they really are (offset added)
 	 */
 	@Override
 	public String toString() {
-		String result = "polyline ";
+		StringBuilder result = new StringBuilder(count * 8 + 24);
+		result.append("polyline ");
 
 		// for every joint in the Polyline
-		for (Point p : joints) {
-			result += (int) p.getX() + " " + (int) p.getY() + " ";
+		for (int i = 0; i < count; i++) {
+			result.append(xs[i] + dx).append(' ').append(ys[i] + dy).append(' ');
 		}
-		result += color.getRGB();
-		return result;
+		result.append(color.getRGB());
+		return result.toString();
 	}
 }
@@ -0,0 +1,237 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Measures Polyline against the way it used to keep its joints (a Point each in an ArrayList, drawn a drawLine
+ * per segment, hit-tested against every segment): heap bytes per joint kept, and ms to draw a stroke into an image,
+ * for strokes of a few lengths; then checks that contains still agrees with the old way, and times it
+ *
+ * Run with: java PolylineBenchmark [joints]
+ * Each length gets enough random-walk strokes to come to that many joints (2,000,000 by default). Bytes are what the strokes keep on the heap,
+ * after a full GC, including the room to spare in the arrays; draw times are after a warm-up, headless,
+ * into an 800x800 ARGB image. contains is timed on points near the end of a stroke, where the old way had the
+ * most segments to go through before a hit.
+ */
+public class PolylineBenchmark {
+	private static final int[] LENGTHS = {1_000, 10_000, 100_000};
+	private static final int[] CONTAINS_LENGTHS = {1_000, 20_000};
+	private static final int CHECK_STROKES = 300, CHECK_QUERIES = 2000, TIMED_QUERIES = 10_000;
+	private static volatile int sink;		// so the timed queries can't be skipped
+
+	/**
+	 * The joints as they used to be kept
+	 */
+	private static class PointList {
+		ArrayList<Point> joints = new ArrayList<>();
+		Color color;
+
+		void draw(Graphics g) {
+			g.setColor(color);
+			for (int i = 0; i < joints.size() - 1; i++) {
+				Point p1 = joints.get(i), p2 = joints.get(i + 1);
+				g.drawLine(p1.x, p1.y, p2.x, p2.y);
+			}
+		}
+
+		void moveBy(int dx, int dy) {
+			for (Point p : joints) {
+				p.translate(dx, dy);
+			}
+		}
+
+		boolean contains(int x, int y) {
+			for (int i = 0; i < joints.size() - 1; i++) {
+				Point p1 = joints.get(i), p2 = joints.get(i + 1);
+				if (Segment.pointToSegmentDistance(x, y, p1.x, p1.y, p2.x, p2.y) < 5) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	public static void main(String[] args) {
+		int joints = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+		System.setProperty("java.awt.headless", "true");
+
+		for (int length : LENGTHS) {
+			int strokes = Math.max(1, joints / length);
+			long oldBytes = kept(() -> {
+				PointList[] lists = new PointList[strokes];
+				Random random = new Random(length);
+				for (int s = 0; s < strokes; s++) {
+					PointList list = new PointList();
+					walk(random, length, (x, y) -> list.joints.add(new Point(x, y)));
+					lists[s] = list;
+				}
+				return lists;
+			});
+			long newBytes = kept(() -> {
+				Polyline[] polylines = new Polyline[strokes];
+				Random random = new Random(length);
+				for (int s = 0; s < strokes; s++) {
+					Polyline polyline = new Polyline();
+					walk(random, length, polyline::addPoints);
+					polylines[s] = polyline;
+				}
+				return polylines;
+			});
+
+			// the same strokes both ways, to draw
+			PointList[] lists = new PointList[strokes];
+			Polyline[] polylines = new Polyline[strokes];
+			Random random = new Random(length);
+			for (int s = 0; s < strokes; s++) {
+				PointList list = new PointList();
+				Polyline polyline = new Polyline();
+				walk(random, length, (x, y) -> {
+					list.joints.add(new Point(x, y));
+					polyline.addPoints(x, y);
+				});
+				list.color = Color.red;
+				polyline.setColor(Color.red);
+				lists[s] = list;
+				polylines[s] = polyline;
+			}
+
+			BufferedImage image = new BufferedImage(800, 800, BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g = image.createGraphics();
+			double oldMillis = 0, newMillis = 0;
+			// twice, so the first round is the warm-up
+			for (int round = 0; round < 2; round++) {
+				long start = System.nanoTime();
+				for (PointList list : lists) {
+					list.draw(g);
+				}
+				long middle = System.nanoTime();
+				for (Polyline polyline : polylines) {
+					polyline.draw(g);
+				}
+				long end = System.nanoTime();
+				oldMillis = (middle - start) / 1e6 / strokes;
+				newMillis = (end - middle) / 1e6 / strokes;
+			}
+			g.dispose();
+
+			System.out.printf("%,8d joints: %5.1f -> %5.1f bytes/joint, draw %6.2f -> %6.2f ms (Point list -> Polyline)%n",
+					length, (double) oldBytes / strokes / length, (double) newBytes / strokes / length, oldMillis, newMillis);
+		}
+
+		checkContains();
+		timeContains();
+	}
+
+	/**
+	 * Random strokes of random lengths, moved after they are built, asked about random points both ways
+	 */
+	private static void checkContains() {
+		Random random = new Random(3);
+		int differences = 0;
+		for (int s = 0; s < CHECK_STROKES; s++) {
+			PointList list = new PointList();
+			Polyline polyline = new Polyline();
+			walk(random, 1 + random.nextInt(s < CHECK_STROKES * 5 / 6 ? 200 : 5000), (x, y) -> {
+				list.joints.add(new Point(x, y));
+				polyline.addPoints(x, y);
+			});
+			int dx = random.nextInt(50), dy = random.nextInt(50);
+			list.moveBy(dx, dy);
+			polyline.moveBy(dx, dy);
+
+			for (int q = 0; q < CHECK_QUERIES; q++) {
+				int x = random.nextInt(850), y = random.nextInt(850);
+				if (list.contains(x, y) != polyline.contains(x, y)) {
+					differences++;
+				}
+			}
+		}
+		System.out.printf("contains: %,d differences in %,d queries%n", differences, CHECK_STROKES * CHECK_QUERIES);
+	}
+
+	/**
+	 * Points near the end of one long stroke, asked about both ways
+	 */
+	private static void timeContains() {
+		for (int length : CONTAINS_LENGTHS) {
+			Random random = new Random(length);
+			PointList list = new PointList();
+			Polyline polyline = new Polyline();
+			walk(random, length, (x, y) -> {
+				list.joints.add(new Point(x, y));
+				polyline.addPoints(x, y);
+			});
+			Point end = list.joints.get(length - 1);
+			int[] xs = new int[TIMED_QUERIES], ys = new int[TIMED_QUERIES];
+			for (int q = 0; q < TIMED_QUERIES; q++) {
+				xs[q] = end.x + random.nextInt(41) - 20;
+				ys[q] = end.y + random.nextInt(41) - 20;
+			}
+
+			double oldMicros = 0, newMicros = 0;
+			// three times, so the first rounds are the warm-up
+			for (int round = 0; round < 3; round++) {
+				int hits = 0;
+				long start = System.nanoTime();
+				for (int q = 0; q < TIMED_QUERIES; q++) {
+					if (list.contains(xs[q], ys[q])) {
+						hits++;
+					}
+				}
+				long middle = System.nanoTime();
+				for (int q = 0; q < TIMED_QUERIES; q++) {
+					if (polyline.contains(xs[q], ys[q])) {
+						hits++;
+					}
+				}
+				long finish = System.nanoTime();
+				sink = hits;
+				oldMicros = (middle - start) / 1e3 / TIMED_QUERIES;
+				newMicros = (finish - middle) / 1e3 / TIMED_QUERIES;
+			}
+			System.out.printf("%,8d joints: contains near the end %8.2f -> %6.2f us (Point list -> Polyline)%n",
+					length, oldMicros, newMicros);
+		}
+	}
+
+	/**
+	 * Takes a joint
+	 */
+	private interface Joints {
+		void add(int x, int y);
+	}
+
+	/**
+	 * A random walk of joints around the image, a few pixels each step
+	 */
+	private static void walk(Random random, int length, Joints joints) {
+		int x = 400, y = 400;
+		for (int i = 0; i < length; i++) {
+			x = Math.max(0, Math.min(799, x + random.nextInt(11) - 5));
+			y = Math.max(0, Math.min(799, y + random.nextInt(11) - 5));
+			joints.add(x, y);
+		}
+	}
+
+	/**
+	 * How many bytes more the heap holds, after a full GC, while what make makes is kept
+	 */
+	private static long kept(Supplier<Object> make) {
+		long before = used();
+		Object made = make.get();
+		long after = used();
+		Reference.reachabilityFence(made);
+		return after - before;
+	}
+
+	private static long used() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+}
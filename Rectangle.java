@@ -78,6 +78,19 @@ public class Rectangle implements Shape {
 	    g.fillRect(x1, y1, x2-x1, y2-y1);
 	}
 
+    /**
+     * The rectangle itself (its corners may be given in either order)
+     */
+	@Override
+	public java.awt.Rectangle getBounds() {
+	    return new java.awt.Rectangle(Math.min(x1, x2), Math.min(y1, y2), Math.abs(x2 - x1) + 1, Math.abs(y2 - y1) + 1);
+	}
+
+	@Override
+	public Shape copy() {
+		return new Rectangle(x1, y1, x2, y2, color);
+	}
+
     /**
      * Return a string for the Polyline
      */
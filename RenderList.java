@@ -0,0 +1,13 @@
+/**
+ * The shapes to draw, bottom-most first, as copies that never change once published,
+ * so they can be drawn without the sketch's lock while updates go on
+ */
+public class RenderList {
+	public final Shape[] shapes;				// the shapes, bottom-most first
+	public final java.awt.Rectangle[] bounds;	// the bounds of each of those shapes
+
+	public RenderList(Shape[] shapes, java.awt.Rectangle[] bounds) {
+		this.shapes = shapes;
+		this.bounds = bounds;
+	}
+}
@@ -62,7 +62,8 @@ public class Segment implements Shape {
 
 	@Override
 	public boolean contains(int x, int y) {
-		return pointToSegmentDistance(x, y, x1, y1, x2, y2) <= 3;
+		// compare squared distances, to skip the square root
+		return pointToSegmentDistance2(x, y, x1, y1, x2, y2) <= 3 * 3;
 	}
 
 	/**
@@ -81,6 +82,17 @@ public class Segment implements Shape {
 		return Math.sqrt(dist2(x, y, x1+t*(x2-x1), y1+t*(y2-y1)));
 	}
 
+	/**
+	 * The square of pointToSegmentDistance, for comparing against a squared limit without the square root
+	 */
+	public static double pointToSegmentDistance2(int x, int y, int x1, int y1, int x2, int y2) {
+		double l2 = dist2(x1, y1, x2, y2);
+		if (l2 == 0) return dist2(x, y, x1, y1); // segment is a point
+		double t = ((double) (x-x1)*(x2-x1) + (double) (y-y1)*(y2-y1)) / l2;
+		t = Math.max(0, Math.min(1, t));
+		return dist2(x, y, x1+t*(x2-x1), y1+t*(y2-y1));
+	}
+
 	/**
 	 * Euclidean distance squared between (x1,y1) and (x2,y2)
 	 */
@@ -94,6 +106,19 @@ public class Segment implements Shape {
 		g.drawLine(x1, y1, x2, y2);
 	}
 
+	/**
+	 * The segment's box, widened by the distance contains allows
+	 */
+	@Override
+	public java.awt.Rectangle getBounds() {
+		return new java.awt.Rectangle(Math.min(x1, x2) - 3, Math.min(y1, y2) - 3, Math.abs(x2 - x1) + 7, Math.abs(y2 - y1) + 7);
+	}
+
+	@Override
+	public Shape copy() {
+		return new Segment(x1, y1, x2, y2, color);
+	}
+
 	@Override
 	public String toString() {
 		return "segment "+x1+" "+y1+" "+x2+" "+y2+" "+color.getRGB();
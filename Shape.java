@@ -35,4 +35,14 @@ public interface Shape {
 	 * Draws the shape
 	 */
 	public void draw(Graphics g);
+
+	/**
+	 * @return The smallest rectangle holding every point for which contains is true
+	 */
+	public java.awt.Rectangle getBounds();
+
+	/**
+	 * @return A new shape just like this one, that doesn't change when this one does
+	 */
+	public Shape copy();
 }
@@ -0,0 +1,130 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Times hit-testing and drawing of the built-in shapes, in ns and bytes allocated per call,
+ * next to the way each used to be done (a new Polygon and Point per triangle call, Math.pow for ellipses,
+ * a square root for segments), and checks that both ways agree on every point
+ *
+ * Run with: java ShapeBenchmark [points] [reps]
+ * Bytes are counted with the JVM's per-thread allocation counter (HotSpot); numbers are after a warm-up,
+ * and every kernel goes through the same interface call, so the comparison is like for like.
+ */
+public class ShapeBenchmark {
+	private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	private static volatile long sink;		// keeps the JIT from dropping the work
+
+	/**
+	 * A hit test on one shape
+	 */
+	private interface Probe {
+		boolean test(int x, int y);
+	}
+
+	public static void main(String[] args) {
+		int points = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+		int reps = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+		Random random = new Random(1);
+		int[] xs = new int[points], ys = new int[points];
+		for (int i = 0; i < points; i++) {
+			xs[i] = random.nextInt(300);
+			ys[i] = random.nextInt(300);
+		}
+
+		// the same shapes, both ways
+		int x1 = 20, x2 = 280, y1 = 20, y2 = 250;
+		Triangle triangle = new Triangle(x1, x2, y1, y2 - y1, Color.red);
+		int[] cornersX = {x1, x2, x1 + (x2 - x1) / 2}, cornersY = {y1, y1, y2};
+		Ellipse ellipse = new Ellipse(x1, y1, x2, y2, Color.red);
+		Segment segment = new Segment(x1, y1, x2, y2, Color.red);
+
+		Probe polygonTriangle = (x, y) -> new Polygon(cornersX, cornersY, 3).contains(new Point(x, y));
+		Probe powEllipse = (x, y) -> {
+			double a = (x2 - x1) / 2.0, b = (y2 - y1) / 2.0;
+			double dx = x - (x1 + a), dy = y - (y1 + b);
+			return Math.pow(dx / a, 2) + Math.pow(dy / b, 2) <= 1;
+		};
+		Probe sqrtSegment = (x, y) -> Segment.pointToSegmentDistance(x, y, x1, y1, x2, y2) <= 3;
+
+		System.out.println("disagreements: triangle " + disagreements(triangle::contains, polygonTriangle, xs, ys)
+				+ ", ellipse " + disagreements(ellipse::contains, powEllipse, xs, ys)
+				+ ", segment " + disagreements(segment::contains, sqrtSegment, xs, ys));
+
+		// twice, so the first round is the warm-up
+		for (int round = 0; round < 2; round++) {
+			System.out.println(round == 0 ? "warming up" : "results");
+			contains("Triangle.contains, via Polygon", polygonTriangle, xs, ys, reps);
+			contains("Triangle.contains", triangle::contains, xs, ys, reps);
+			contains("Ellipse.contains, via Math.pow", powEllipse, xs, ys, reps);
+			contains("Ellipse.contains", ellipse::contains, xs, ys, reps);
+			contains("Segment.contains, via sqrt", sqrtSegment, xs, ys, reps);
+			contains("Segment.contains", segment::contains, xs, ys, reps);
+
+			BufferedImage image = new BufferedImage(300, 300, BufferedImage.TYPE_INT_ARGB);
+			Graphics g = image.getGraphics();
+			g.setColor(Color.red);
+			draw("Triangle.draw, via Polygon", () -> g.fillPolygon(new Polygon(cornersX, cornersY, 3)), reps * 100);
+			draw("Triangle.draw", () -> triangle.draw(g), reps * 100);
+			draw("Ellipse.draw", () -> ellipse.draw(g), reps * 100);
+			draw("Segment.draw", () -> segment.draw(g), reps * 100);
+			g.dispose();
+		}
+	}
+
+	/**
+	 * At how many of the points the two tests give different answers
+	 */
+	private static int disagreements(Probe probe, Probe reference, int[] xs, int[] ys) {
+		int count = 0;
+		for (int i = 0; i < xs.length; i++) {
+			if (probe.test(xs[i], ys[i]) != reference.test(xs[i], ys[i])) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Times the test over every point, reps times
+	 */
+	private static void contains(String name, Probe probe, int[] xs, int[] ys, int reps) {
+		long hits = 0;
+		long bytes = allocated(), start = System.nanoTime();
+		for (int rep = 0; rep < reps; rep++) {
+			for (int i = 0; i < xs.length; i++) {
+				if (probe.test(xs[i], ys[i])) {
+					hits++;
+				}
+			}
+		}
+		report(name, System.nanoTime() - start, allocated() - bytes, (long) reps * xs.length);
+		sink = hits;
+	}
+
+	/**
+	 * Times drawing, calls times
+	 */
+	private static void draw(String name, Runnable drawing, int calls) {
+		long bytes = allocated(), start = System.nanoTime();
+		for (int i = 0; i < calls; i++) {
+			drawing.run();
+		}
+		report(name, System.nanoTime() - start, allocated() - bytes, calls);
+	}
+
+	private static void report(String name, long nanos, long bytes, long ops) {
+		System.out.printf("  %-32s %8.1f ns/op %8.1f bytes/op%n", name, (double) nanos / ops, (double) bytes / ops);
+	}
+
+	/**
+	 * How many bytes this thread has allocated so far
+	 * (getId rather than threadId, which is new in 19, so this runs on older JDKs too)
+	 */
+	@SuppressWarnings("deprecation")
+	private static long allocated() {
+		return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -1,8 +1,9 @@
 import java.awt.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.HashSet;
 import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @Author Maria Paula Mora
@@ -11,153 +12,422 @@ import java.util.TreeMap;
  * Maintains a "master" version of the sketch
  */
 
-public class Sketch {
-    public TreeMap<Integer, Shape> shapes;     // hold all of the shapes in the word
+public class Sketch implements SketchStore {
+    private IdTable<Shape> shapes;             // hold all of the shapes in the word, by ID
+    private final ReentrantLock lock = new ReentrantLock();    // guards shapes; not synchronized, so virtual threads don't pin
+    private final OpParser parser = new OpParser();            // reads incoming messages (only from the thread applying them, or with the lock held)
+    private SpatialGrid grid = null;                           // where each shape is, for finding the shape under a point
+                                                               // (built on the first shapeAt, so a server that never hit-tests doesn't keep one)
+    private IdTable<Shape> copies;              // the copy of each shape in the render list last published
+    private IdTable<java.awt.Rectangle> copyBounds;     // and its bounds
+    private HashSet<Integer> unpublished;       // shapes changed since then
+    private boolean publishing = false;         // whether publish has ever been called (only then are changes kept track of)
+    private volatile RenderList render = new RenderList(new Shape[0], new java.awt.Rectangle[0]);
+    private java.awt.Rectangle dirtyRegion;     // everywhere published changes were, since the last time it was taken
+    private IdTable<String> encoded;            // each shape's "<ID> <shapeString>", kept until that shape changes
+    private String snapshot;                    // the whole sketch as a string, kept until anything changes
+
+    // Ops made here and shown already, but not yet confirmed by the server (see applyLocal)
+    private ArrayDeque<LocalOp> local = new ArrayDeque<>();    // in the order they were sent
+    private IdTable<Shape[]> confirmed = new IdTable<>();      // for each shape they touch, the server's version of it ({null} if none)
+    private boolean loading = false;                           // whether the world is being loaded afresh (ours wait for it, see beginLoad)
+
+    /**
+     * An op made here, by its number on the way to the server
+     */
+    private static class LocalOp {
+        final long number;
+        final int id;           // the shape it is about
+        final String line;
+        final boolean shown;    // whether it was applied when made (it is in the server's world once confirmed, either way)
+
+        LocalOp(long number, int id, String line, boolean shown) {
+            this.number = number;
+            this.id = id;
+            this.line = line;
+            this.shown = shown;
+        }
+    }
 
     public Sketch() {
-        shapes = new TreeMap<>();
+        shapes = new IdTable<>();
+        encoded = new IdTable<>();
+        copies = new IdTable<>();
+        copyBounds = new IdTable<>();
+        unpublished = new HashSet<>();
     }
 
     /**
-     * get the current map of the entire world
+     * Forget the saved strings for a shape that changed (call with the lock held)
      */
-    public synchronized TreeMap<Integer, Shape> getMap() {
-        return shapes;
+    private void changed(int id) {
+        encoded.remove(id);
+        snapshot = null;
+        if (publishing) {
+            unpublished.add(id);
+        }
     }
 
     /**
-     * allow the adding of new shapes into the tree map
+     * How many shapes there are
      */
-    public synchronized void addShape(Integer ID, Shape s) {
-        shapes.put(ID, s);
+    public int size() {
+        lock.lock();
+        try {
+            return shapes.size();
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * allow the removal of certain shapes into the tree map
+     * get the current map of the entire world (a copy, by ID)
      */
-    public synchronized void removeShape(Integer id) {
-        shapes.remove(id); }
+    public TreeMap<Integer, Shape> getMap() {
+        lock.lock();
+        try {
+            TreeMap<Integer, Shape> map = new TreeMap<>();
+            for (int id = shapes.lowest(); id <= shapes.highest(); id = shapes.next(id)) {
+                Shape shape = shapes.get(id);
+                if (shape != null) {
+                    map.put(id, shape);
+                }
+            }
+            return map;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
     /**
-     * allow the changing of color of certain shapes
+     * allow the adding of new shapes into the sketch
      */
-    public synchronized void setColor(Integer id, Color color) {
-        if (shapes.containsKey(id)) {
-            shapes.get(id).setColor(color);
+    public void addShape(int ID, Shape s) {
+        lock.lock();
+        try {
+            shapes.put(ID, s);
+            if (grid != null) {
+                grid.update(ID, s.getBounds());
+            }
+            changed(ID);
+        }
+        finally {
+            lock.unlock();
         }
     }
 
     /**
-     * allow moving of certain shapes of the tree map
+     * allow the removal of certain shapes from the sketch
      */
-    public synchronized void moveShape(Integer id, int dx, int dy) {
-        if (shapes.containsKey(id)) {
-            shapes.get(id).moveBy(dx, dy);
+    public void removeShape(int id) {
+        lock.lock();
+        try {
+            shapes.remove(id);
+            if (grid != null) {
+                grid.remove(id);
+            }
+            changed(id);
+        }
+        finally {
+            lock.unlock();
         }
     }
 
+    /**
+     * allow the changing of color of certain shapes
+     */
+    public void setColor(int id, Color color) {
+        lock.lock();
+        try {
+            Shape shape = shapes.get(id);
+            if (shape != null) {
+                shape.setColor(color);
+                changed(id);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
     /**
-     * draw all of the shapes of the map
+     * allow moving of certain shapes of the sketch
      */
-    public synchronized void draw(Graphics g) {
+    public void moveShape(int id, int dx, int dy) {
+        lock.lock();
+        try {
+            Shape shape = shapes.get(id);
+            if (shape != null) {
+                shape.moveBy(dx, dy);
+                if (grid != null) {
+                    grid.update(id, shape.getBounds());
+                }
+                changed(id);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
-        // for every shape in the map
-        for (Integer shapeID: shapes.navigableKeySet()) {
 
-            // set the color based on the shape we are drawing
-            g.setColor((shapes.get(shapeID).getColor()));
+    /**
+     * Find the top-most shape containing the point
+     * Only the shapes whose bounds hold the point are checked, top-most first
+     * @return the shape's ID, or -1 if there is none
+     */
+    public int shapeAt(int x, int y) {
+        lock.lock();
+        try {
+            if (grid == null) {
+                grid = new SpatialGrid();
+                for (int id = shapes.lowest(); id <= shapes.highest(); id = shapes.next(id)) {
+                    Shape shape = shapes.get(id);
+                    if (shape != null) {
+                        grid.insert(id, shape.getBounds());
+                    }
+                }
+            }
+            for (int id : grid.query(x, y)) {
+                if (shapes.get(id).contains(x, y)) {
+                    return id;
+                }
+            }
+            return -1;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
-            // draw the shape
-            shapes.get(shapeID).draw(g);
+    /**
+     * Runs the updates holding the lock the whole time, so a batch of messages takes it only once
+     */
+    public void batch(Runnable updates) {
+        lock.lock();
+        try {
+            updates.run();
+        }
+        finally {
+            lock.unlock();
         }
     }
 
     /**
-     * String the sketch
+     * Make the shapes as they are now the ones to draw
+     * Only shapes that changed since the last time are copied again; call after applying each batch of updates
+     * Where they were and where they are now is added to the dirty region
+     * Changes are only kept track of from the first call on, so a sketch that is never drawn (the server's)
+     * doesn't collect the ID of every shape that ever changed
      */
-    public String toString() {
-        String result = "";
+    public void publish() {
+        lock.lock();
+        try {
+            // the first time, every shape is new to the render list
+            if (!publishing) {
+                publishing = true;
+                for (int id = shapes.lowest(); id <= shapes.highest(); id = shapes.next(id)) {
+                    if (shapes.get(id) != null) {
+                        unpublished.add(id);
+                    }
+                }
+            }
+            if (unpublished.isEmpty()) {
+                return;
+            }
+            for (Integer id : unpublished) {
+                // the old copy has to be erased
+                addDirty(copyBounds.get(id));
+
+                Shape shape = shapes.get(id);
+                if (shape != null) {
+                    java.awt.Rectangle bounds = shape.getBounds();
+                    copies.put(id, shape.copy());
+                    copyBounds.put(id, bounds);
+                    addDirty(bounds);
+                }
+                else {
+                    copies.remove(id);
+                    copyBounds.remove(id);
+                }
+            }
+            unpublished.clear();
+
+            Shape[] list = new Shape[copies.size()];
+            java.awt.Rectangle[] bounds = new java.awt.Rectangle[list.length];
+            int i = 0;
+            for (int id = copies.lowest(); id <= copies.highest(); id = copies.next(id)) {
+                Shape copy = copies.get(id);
+                if (copy != null) {
+                    list[i] = copy;
+                    bounds[i] = copyBounds.get(id);
+                    i++;
+                }
+            }
+            render = new RenderList(list, bounds);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
-        // if there are no shapes in sketch
-        if (shapes.size() == 0) {
-            return result;
+    /**
+     * Grow the dirty region to cover the bounds (call with the lock held)
+     */
+    private void addDirty(java.awt.Rectangle bounds) {
+        if (bounds == null) {
+            return;
+        }
+        if (dirtyRegion == null) {
+            dirtyRegion = new java.awt.Rectangle(bounds);
         }
+        else {
+            dirtyRegion.add(bounds);
+        }
+    }
 
-        // for every shape in the sketch
-        for (Integer id : shapes.descendingKeySet()) {
-            // add this shape's information to the string
-            result += id + " " + shapes.get(id).toString() + ",";
+    /**
+     * Everywhere that published changes were since the last call, and start over
+     * Take this before getting the render list, so no change is missed
+     * @return the region, or null if nothing changed
+     */
+    public java.awt.Rectangle takeDirtyRegion() {
+        lock.lock();
+        try {
+            java.awt.Rectangle region = dirtyRegion;
+            dirtyRegion = null;
+            return region;
+        }
+        finally {
+            lock.unlock();
         }
+    }
 
-        // remove the extra comma at the end
-        return (result.substring(0, result.length()-1));
+    /**
+     * The shapes to draw, bottom-most first, as of the last publish
+     * Nothing in it ever changes, so it can be drawn without the lock while updates go on
+     */
+    public RenderList getRenderList() {
+        return render;
     }
 
     /**
-     * Update a sketch based entirely from a string
-     * proper format to parse "<ID> <shapeString>, <ID> <shapeString>, ..."
-     * @param line      // a string description of another string
+     * draw all of the shapes of the map (as last published)
      */
-    public void parseSketch(String line) {
-        // if there is something on the image when the client signs in
-        if (!line.equals("")) {
+    public void draw(Graphics g) {
+        for (Shape shape : render.shapes) {
+            shape.draw(g);
+        }
+    }
 
-            // get all of the shapes
-            String[] currentSketch = line.split(",");
+    /**
+     * String the sketch
+     * Built from each shape's saved string, so only shapes that changed since the last time are re-encoded;
+     * if nothing at all changed, the last string is handed out again
+     */
+    public String toString() {
+        lock.lock();
+        try {
+            if (snapshot != null) {
+                return snapshot;
+            }
 
-            // for every shape
-            for (String shapeString : currentSketch) {
-                //get the properties of the shape
-                String[] shapeData = shapeString.split(" ");
+            StringBuilder result = new StringBuilder();
 
-                Shape shape;
+            // for every shape in the sketch
+            for (int id = shapes.highest(); id >= shapes.lowest(); id = shapes.previous(id)) {
+                if (shapes.get(id) == null) {
+                    continue;
+                }
 
-                // ID of the current shape
-                int ID = Integer.parseInt(shapeData[0]);
+                // add this shape's information to the string, separated by commas
+                if (result.length() > 0) {
+                    result.append(',');
+                }
+                result.append(encode(id));
+            }
 
-                // if this shape is a polyline
-                if (shapeData[1].equals("polyline")) {
+            snapshot = result.toString();
+            return snapshot;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
-                    // instantiate the shape to a polyline
-                    shape = new Polyline();
+    /**
+     * A point-in-time copy of the sketch, to stream to a joining client in chunks
+     * Only the list of (saved) shape strings is copied, not the strings themselves
+     */
+    public Snapshot snapshot() {
+        lock.lock();
+        try {
+            ArrayList<String> pieces = new ArrayList<>(shapes.size());
+            for (int id = shapes.highest(); id >= shapes.lowest(); id = shapes.previous(id)) {
+                if (shapes.get(id) != null) {
+                    pieces.add(encode(id));
+                }
+            }
+            return new Snapshot(pieces);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
-                    // go through all of the points in the list
-                    for (int i = 2; i < shapeData.length - 1; i += 2) {
+    /**
+     * The shape's "<ID> <shapeString>", saved until the shape changes (call with the lock held)
+     */
+    private String encode(int id) {
+        String shapeString = encoded.get(id);
+        if (shapeString == null) {
+            shapeString = id + " " + shapes.get(id).toString();
+            encoded.put(id, shapeString);
+        }
+        return shapeString;
+    }
 
-                        // add it to the array list of the shape
-                        ((Polyline) shape).addPoints(Integer.parseInt(shapeData[i]), Integer.parseInt(shapeData[i + 1]));
-                    }
+    /**
+     * Update a sketch based entirely from a string
+     * proper format to parse "<ID> <shapeString>, <ID> <shapeString>, ..."
+     * @param line      // a string description of another string
+     * @return false if any of the shapes were malformed (those are skipped)
+     */
+    public boolean parseSketch(String line) {
+        boolean ok = true;
+        int start = 0;
+
+        // for every shape (if there is something on the image when the client signs in)
+        while (start < line.length()) {
+            int end = line.indexOf(',', start);
+            if (end == -1) {
+                end = line.length();
+            }
 
-                    // set the color of the shape
-                    shape.setColor(new Color(Integer.parseInt(shapeData[shapeData.length - 1])));
-                }
+            // the properties of the shape: ID, type, dimensions, color
+            parser.reset(line, start, end);
+            int ID = parser.nextInt();
+            int type = parser.nextShapeType();
+            int count = parser.readInts();
 
-                // if it's not a polygraph
-                else {
-                    // get all of the dimensions
-                    int x1 = Integer.parseInt(shapeData[2]);
-                    int y1 = Integer.parseInt(shapeData[3]);
-                    int x2 = Integer.parseInt(shapeData[4]);
-                    int y2 = Integer.parseInt(shapeData[5]);
-                    Color color = new Color(Integer.parseInt(shapeData[6]));
-
-                    // create a shape depending on the type
-                    if (shapeData[1].equals("ellipse")) {
-                        shape = new Ellipse(x1, y1, x2, y2, color);
-                    }
-                    else if (shapeData[1].equals("rectangle")) {
-                        shape = new Rectangle(x1, y1, x2, y2, color);
-                    }
-                    else {
-                        shape = new Segment(x1, y1, x2, y2, color);
-                    }
-                }
+            // the last number is the color
+            Shape shape = null;
+            if (!parser.hasError() && count >= 1) {
+                shape = parser.buildShape(type, count - 1, parser.value(count - 1));
+            }
 
-                // add this current shape to the editor sketch
+            // add this current shape to the editor sketch (skipping it if it was malformed)
+            if (shape != null) {
                 addShape(ID, shape);
             }
+            else {
+                ok = false;
+            }
+            start = end + 1;
         }
+        return ok;
     }
 
     /**
@@ -168,77 +438,290 @@ public class Sketch {
      *                               "<color> <ID> <RGB>" for change color
      *                               "<move> <ID> <dx> <dy>" for move
      * @param line      // the message
+     * @return false (leaving the sketch alone) if the message was malformed
      */
-    public void handleMessage(String line) {
-
-        String[] message = line.split(" ");
-        Shape shape;
-        int ID;
+    public boolean handleMessage(String line) {
+        parser.reset(line);
+        int op = parser.nextOp();
 
         // if the method is add
-        if (message[0].equals("add")) {
+        if (op == OpParser.ADD) {
+            int type = parser.nextShapeType();
+            int count = parser.readInts();
+            if (parser.hasError() || count < 2) {
+                return false;
+            }
+
+            // the last two numbers are the color and the ID of the shape
+            Shape shape = parser.buildShape(type, count - 2, parser.value(count - 2));
+            if (shape == null) {
+                return false;
+            }
 
-            // if the shape is a polyline
-            if (message[1].equals("polyline")) {
+            // add the shape to the map of sketch
+            addShape(parser.value(count - 1), shape);
+        }
+        // if the method is delete
+        else if (op == OpParser.DELETE) {
+            int ID = parser.nextInt();
+            if (!parser.finished()) {
+                return false;
+            }
 
-                // instantiate the shape
-                shape = new Polyline();
+            // remove the shape from the sketch
+            removeShape(ID);
+        }
+        // if the method is move
+        else if (op == OpParser.MOVE) {
+            int ID = parser.nextInt();
+            int dx = parser.nextInt();
+            int dy = parser.nextInt();
+            if (!parser.finished()) {
+                return false;
+            }
 
-                // go through all of the points in the list
-                for (int i = 2; i < message.length - 2; i += 2) {
+            // move the shape in the sketch
+            moveShape(ID, dx, dy);
+        }
+        // if the method is recolor
+        else if (op == OpParser.COLOR) {
+            int ID = parser.nextInt();
+            int rgb = parser.nextInt();
+            if (!parser.finished()) {
+                return false;
+            }
 
-                    // add it to the array list of the shape
-                    ((Polyline) shape).addPoints(Integer.parseInt(message[i]), Integer.parseInt(message[i + 1]));
+            // recolor the shape in the sketch
+            setColor(ID, OpParser.color(rgb));
+        }
+        else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Applies an op made here right away, without waiting for the server to send it back
+     * (see ClientOp: the server sends "ack <number>" instead, once the op has its place among everyone else's)
+     * Until then, the shape it is about is also kept as the server has it, so others' ops can go
+     * underneath ours (applyRemote) and ours be played again on top
+     * @param number the op's number on the way to the server (see ClientOutbox)
+     * @param show whether to apply it now; if not, it only goes in once confirmed
+     */
+    public void applyLocal(long number, String line, boolean show) {
+        lock.lock();
+        try {
+            int id = opID(line);
+            if (id == -1) {
+                return;
+            }
+            // the world isn't all here yet: ours go on top once it is
+            if (loading) {
+                local.add(new LocalOp(number, id, line, show));
+                return;
+            }
+            if (confirmed.get(id) == null) {
+                Shape shape = shapes.get(id);
+                confirmed.put(id, new Shape[] {shape == null ? null : shape.copy()});
+            }
+            if (show) {
+                handleMessage(line);
+            }
+            local.add(new LocalOp(number, id, line, show));
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies an op from the server: under our own ops still waiting for confirmation, if any are about the same shape
+     * @return false (leaving the sketch alone) if the message was malformed
+     */
+    public boolean applyRemote(String line) {
+        lock.lock();
+        try {
+            if (confirmed.size() > 0) {
+                int id = opID(line);
+                if (id != -1 && confirmed.get(id) != null) {
+                    rebase(id, line);
+                    return true;
                 }
+            }
+            return handleMessage(line);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
-                // set the color of the shape
-                shape.setColor(new Color(Integer.parseInt(message[message.length - 2])));
+    /**
+     * The server applied our ops up to and including this number, each as we sent it
+     */
+    public void confirm(long number) {
+        lock.lock();
+        try {
+            while (!local.isEmpty() && local.peekFirst().number <= number) {
+                LocalOp op = local.pollFirst();
+                rebase(op.id, op.line);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
-                // save the id of the shape
-                ID = Integer.parseInt(message[message.length - 1]);
+    /**
+     * The server didn't take our op with this number as sent: take it back
+     */
+    public void reject(long number) {
+        lock.lock();
+        try {
+            for (LocalOp op : local) {
+                if (op.number == number) {
+                    local.remove(op);
+                    rebase(op.id, null);
+                    return;
+                }
             }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
-            // if it's any other shape
-            else {
+    /**
+     * Takes back every op of ours the server hasn't confirmed, leaving each shape as the server last had it
+     * (for a lost connection: those that got through come back with the rest of what was missed)
+     */
+    public void rollback() {
+        lock.lock();
+        try {
+            for (int id = confirmed.lowest(); id <= confirmed.highest(); id = confirmed.next(id)) {
+                Shape[] base = confirmed.get(id);
+                if (base != null) {
+                    install(id, base[0]);
+                }
+            }
+            confirmed.clear();
+            local.clear();
+            loading = false;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
-                // get the dimensions
-                int x1 = Integer.parseInt(message[2]);
-                int y1 = Integer.parseInt(message[3]);
-                int x2 = Integer.parseInt(message[4]);
-                int y2 = Integer.parseInt(message[5]);
-                Color color = new Color(Integer.parseInt(message[6]));
-                ID = Integer.parseInt(message[7]);
+    /**
+     * Removes every shape, before loading the world afresh
+     * Our ops waiting on the server are kept: they were sent after the world being loaded was taken,
+     * so they are played again on top of it once it is all here (see endLoad)
+     */
+    public void beginLoad() {
+        lock.lock();
+        try {
+            for (int id = shapes.highest(); id >= shapes.lowest(); id = shapes.previous(id)) {
+                if (shapes.get(id) != null) {
+                    removeShape(id);
+                }
+            }
+            confirmed.clear();
+            loading = true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
-                // create the shape depending on the type
-                if (message[1].equals("ellipse")) {
-                    shape = new Ellipse(x1, y1, x2, y2, color);
-                } else if (message[1].equals("rectangle")) {
-                    shape = new Rectangle(x1, y1, x2, y2, color);
-                } else {
-                    shape = new Segment(x1, y1, x2, y2, color);
+    /**
+     * The world is all loaded: keep the server's version of each shape our ops are about, and show ours on top again
+     */
+    public void endLoad() {
+        lock.lock();
+        try {
+            loading = false;
+            for (LocalOp op : local) {
+                if (confirmed.get(op.id) == null) {
+                    Shape shape = shapes.get(op.id);
+                    confirmed.put(op.id, new Shape[] {shape == null ? null : shape.copy()});
+                }
+                if (op.shown) {
+                    handleMessage(op.line);
                 }
             }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
-            // add the shape to the map of sketch
-            addShape(ID, shape);
+    /**
+     * Applies an op to the server's version of a shape, then plays our own unconfirmed ops about it on top again
+     * (call with the lock held)
+     * @param line the op, or null to just play ours again
+     */
+    private void rebase(int id, String line) {
+        Shape[] base = confirmed.get(id);
+        if (base == null) {
+            if (line != null) {
+                handleMessage(line);
+            }
+            return;
         }
-        // if the method is delete
-        else if (message[0].equals("delete")) {
 
-            // remove the shape from the sketch
-            removeShape(Integer.parseInt(message[1]));
+        // the server's version, with the op
+        install(id, base[0]);
+        if (line != null) {
+            handleMessage(line);
+        }
+        Shape server = shapes.get(id);
+
+        // nothing of ours left on it: that's what to show
+        boolean mine = false;
+        for (LocalOp op : local) {
+            if (op.id == id) {
+                mine = true;
+                break;
+            }
+        }
+        if (!mine) {
+            confirmed.remove(id);
+            return;
         }
-        // if the method is move
-        else if (message[0].equals("move")) {
 
-            // move the shape in the sketch
-            moveShape(Integer.parseInt(message[1]), Integer.parseInt(message[2]), Integer.parseInt(message[3]));
+        // keep that aside, and show a copy with ours on top
+        base[0] = server;
+        install(id, server == null ? null : server.copy());
+        for (LocalOp op : local) {
+            if (op.id == id && op.shown) {
+                handleMessage(op.line);
+            }
         }
-        // if the recolor is move
-        else if (message[0].equals("color")) {
+    }
 
-            // recolor the shape in the sketch
-            setColor(Integer.parseInt(message[1]), new Color(Integer.parseInt(message[2])));
+    /**
+     * Puts the shape in the sketch under the ID (or takes whatever is there out, for null)
+     */
+    private void install(int id, Shape shape) {
+        if (shape == null) {
+            removeShape(id);
+        }
+        else {
+            addShape(id, shape);
+        }
+    }
+
+    /**
+     * The ID of the shape an op is about (call with the lock held)
+     * @return the ID, or -1 if the op is malformed (or an add with no ID yet)
+     */
+    private int opID(String line) {
+        parser.reset(line);
+        int op = parser.nextOp();
+        if (op == OpParser.ADD) {
+            return parser.addID(line);
         }
+        int id = parser.nextInt();
+        return op == OpParser.UNKNOWN || parser.hasError() ? -1 : id;
     }
 }
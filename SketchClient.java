@@ -0,0 +1,46 @@
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * What the server keeps about one connected editor, whichever way it is connected:
+ * how many messages it has sent, the blocks of IDs it was leased (see IdLease), whether it applies
+ * its own ops ahead of the server, and how to send a message back to just it
+ *
+ * Only touched by the thread reading from the client, except send and isOptimistic, which the sequencer uses.
+ */
+public class SketchClient {
+	private final Consumer<String> reply;							// sends a message to just this client
+	private long received = 0;										// how many messages it has sent so far
+	private final ArrayList<IdLease> leases = new ArrayList<>();	// the blocks of IDs it was given to pick from
+	private volatile boolean optimistic = false;					// whether it applies its own ops itself (see ClientOp)
+
+	public SketchClient(Consumer<String> reply) {
+		this.reply = reply;
+	}
+
+	/**
+	 * Sends a message to just this client
+	 */
+	public void send(String msg) {
+		reply.accept(msg);
+	}
+
+	/**
+	 * Numbers the next message from the client (counting every message, from 1, in the order sent)
+	 */
+	public long count() {
+		return ++received;
+	}
+
+	public ArrayList<IdLease> getLeases() {
+		return leases;
+	}
+
+	public boolean isOptimistic() {
+		return optimistic;
+	}
+
+	public void setOptimistic(boolean optimistic) {
+		this.optimistic = optimistic;
+	}
+}
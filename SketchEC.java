@@ -1,5 +1,6 @@
 import java.awt.*;
 import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @Author Maria Paula Mora
@@ -9,74 +10,169 @@ import java.util.TreeMap;
  */
 
 public class SketchEC {
-    public TreeMap<Integer, Shape> shapes;     // hold all of the shapes in the word
+    private IdTable<Shape> shapes;             // hold all of the shapes in the word, by ID
+    private final ReentrantLock lock = new ReentrantLock();    // guards shapes; not synchronized, so virtual threads don't pin
+    private final OpParser parser = new OpParser();            // reads incoming messages (only with the lock held: every communicator applies them)
+    private SpatialGrid grid = null;                           // where each shape is, for finding the shape under a point
+                                                               // (built on the first shapeAt, so a server that never hit-tests doesn't keep one)
 
     /**
      * Constructor for this class
      */
     public SketchEC() {
-        // initialize shapes tree map
-        shapes = new TreeMap<>();
+        // initialize shapes table
+        shapes = new IdTable<>();
     }
 
     /**
-     * get the current map of the entire world
+     * get the current map of the entire world (a copy, by ID)
      */
-    public synchronized TreeMap<Integer, Shape> getMap() {
-        return shapes;
+    public TreeMap<Integer, Shape> getMap() {
+        lock.lock();
+        try {
+            TreeMap<Integer, Shape> map = new TreeMap<>();
+            for (int id = shapes.lowest(); id <= shapes.highest(); id = shapes.next(id)) {
+                Shape shape = shapes.get(id);
+                if (shape != null) {
+                    map.put(id, shape);
+                }
+            }
+            return map;
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * allow the adding of new shapes into the tree map
+     * allow the adding of new shapes into the sketch
      */
-    public synchronized void addShape(Integer ID, Shape s) {
-        shapes.put(ID, s);
+    public void addShape(int ID, Shape s) {
+        lock.lock();
+        try {
+            shapes.put(ID, s);
+            if (grid != null) {
+                grid.update(ID, s.getBounds());
+            }
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * allow the removal of certain shapes into the tree map
+     * allow the removal of certain shapes from the sketch
      */
-    public synchronized void removeShape(Integer id) {
-        shapes.remove(id); }
+    public void removeShape(int id) {
+        lock.lock();
+        try {
+            shapes.remove(id);
+            if (grid != null) {
+                grid.remove(id);
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
 
     /**
      * Restart the entire shape map
      */
-    public synchronized void restart(){shapes = new TreeMap<>();}
+    public void restart() {
+        lock.lock();
+        try {
+            shapes.clear();
+            grid = null;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
     /**
      * allow the changing of color of certain shapes
      */
-    public synchronized void setColor(Integer id, Color color) {
-        if (shapes.containsKey(id)) {
-            shapes.get(id).setColor(color);
+    public void setColor(int id, Color color) {
+        lock.lock();
+        try {
+            Shape shape = shapes.get(id);
+            if (shape != null) {
+                shape.setColor(color);
+            }
+        }
+        finally {
+            lock.unlock();
         }
     }
 
     /**
-     * allow moving of certain shapes of the tree map
+     * allow moving of certain shapes of the sketch
      */
-    public synchronized void moveShape(Integer id, int dx, int dy) {
-        if (shapes.containsKey(id)) {
-            shapes.get(id).moveBy(dx, dy);
+    public void moveShape(int id, int dx, int dy) {
+        lock.lock();
+        try {
+            Shape shape = shapes.get(id);
+            if (shape != null) {
+                shape.moveBy(dx, dy);
+                if (grid != null) {
+                    grid.update(id, shape.getBounds());
+                }
+            }
+        }
+        finally {
+            lock.unlock();
         }
     }
 
 
     /**
-     * draw all of the shapes of the map
+     * Find the top-most shape containing the point
+     * Only the shapes whose bounds hold the point are checked, top-most first
+     * @return the shape's ID, or -1 if there is none
      */
-    public synchronized void draw(Graphics g) {
-
-        // for every shape in the map
-        for (Integer shapeID: shapes.navigableKeySet()) {
-
-            // set the color based on the shape we are drawing
-            g.setColor((shapes.get(shapeID).getColor()));
+    public int shapeAt(int x, int y) {
+        lock.lock();
+        try {
+            if (grid == null) {
+                grid = new SpatialGrid();
+                for (int id = shapes.lowest(); id <= shapes.highest(); id = shapes.next(id)) {
+                    Shape shape = shapes.get(id);
+                    if (shape != null) {
+                        grid.insert(id, shape.getBounds());
+                    }
+                }
+            }
+            for (int id : grid.query(x, y)) {
+                if (shapes.get(id).contains(x, y)) {
+                    return id;
+                }
+            }
+            return -1;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
-            // draw the shape
-            shapes.get(shapeID).draw(g);
+    /**
+     * draw all of the shapes of the map
+     */
+    public void draw(Graphics g) {
+        lock.lock();
+        try {
+            // for every shape in the map, bottom-most first
+            for (int shapeID = shapes.lowest(); shapeID <= shapes.highest(); shapeID = shapes.next(shapeID)) {
+                Shape shape = shapes.get(shapeID);
+                if (shape != null) {
+                    // draw the shape (in its color)
+                    shape.draw(g);
+                }
+            }
+        }
+        finally {
+            lock.unlock();
         }
     }
 
@@ -84,99 +180,83 @@ public class SketchEC {
      * String the sketch
      */
     public String toString() {
-        String result = "";
+        lock.lock();
+        try {
+            StringBuilder result = new StringBuilder();
+
+            // for every shape in the sketch, top-most first
+            for (int id = shapes.highest(); id >= shapes.lowest(); id = shapes.previous(id)) {
+                Shape shape = shapes.get(id);
+                if (shape == null) {
+                    continue;
+                }
 
-        // if there are no shapes in sketch
-        if (shapes.size() == 0) {
-            return result;
-        }
+                // add this shape's information to the string, separated by commas
+                if (result.length() > 0) {
+                    result.append(',');
+                }
+                result.append(id).append(' ').append(shape.toString());
+            }
 
-        // for every shape in the sketch
-        for (Integer id : shapes.descendingKeySet()) {
-            // add this shape's information to the string
-            result += id + " " + shapes.get(id).toString() + ",";
+            return result.toString();
+        }
+        finally {
+            lock.unlock();
         }
-
-        // remove the extra comma at the end
-        return (result.substring(0, result.length()-1));
     }
 
     /**
      * Update a sketch based entirely from a string
      * proper format to parse "<ID> <shapeString>, <ID> <shapeString>, ..."
      * @param line      // a string description of another string
+     * @return false if any of the shapes were malformed (those are skipped)
      */
-    public void parseSketch(String line) {
-        // if there is something on the image when the client signs in
-        if (!line.equals("")) {
-
-            // get all of the shapes
-            String[] currentSketch = line.split(",");
-
-            // for every shape
-            for (String shapeString : currentSketch) {
-                //get the properties of the shape
-                String[] shapeData = shapeString.split(" ");
-
-                Shape shape;
-
-                // ID of the current shape
-                int ID = Integer.parseInt(shapeData[0]);
-
-                // if this shape is a polyline
-                if (shapeData[1].equals("polyline")) {
-
-                    // instantiate the shape to a polyline
-                    shape = new Polyline();
-
-                    // go through all of the points in the list
-                    for (int i = 2; i < shapeData.length - 1; i += 2) {
-
-                        // add it to the array list of the shape
-                        ((Polyline) shape).addPoints(Integer.parseInt(shapeData[i]), Integer.parseInt(shapeData[i + 1]));
-                    }
-
-                    // set the color of the shape
-                    shape.setColor(new Color(Integer.parseInt(shapeData[shapeData.length - 1])));
-                }
-
-                // if it's a triangle
-                else if (shapeData[1].equals("triangle")){
-                    // get all of the dimensions
-                    int x1 = Integer.parseInt(shapeData[2]);
-                    int x2 = Integer.parseInt(shapeData[3]);
-                    int y = Integer.parseInt(shapeData[4]);     // the first y value
-                    int h = Integer.parseInt(shapeData[5]);     // height of the triangle
-                    Color color = new Color(Integer.parseInt(shapeData[6]));
+    public boolean parseSketch(String line) {
+        lock.lock();
+        try {
+            return parseShapes(line);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
-                    shape = new Triangle(x1, x2, y, h, color);
-                }
+    /**
+     * parseSketch, with the lock held
+     */
+    private boolean parseShapes(String line) {
+        boolean ok = true;
+        int start = 0;
+
+        // for every shape (if there is something on the image when the client signs in)
+        while (start < line.length()) {
+            int end = line.indexOf(',', start);
+            if (end == -1) {
+                end = line.length();
+            }
 
-                // if it's another shape
-                else {
-                    // get all of the dimensions
-                    int x1 = Integer.parseInt(shapeData[2]);
-                    int y1 = Integer.parseInt(shapeData[3]);
-                    int x2 = Integer.parseInt(shapeData[4]);
-                    int y2 = Integer.parseInt(shapeData[5]);
-                    Color color = new Color(Integer.parseInt(shapeData[6]));
+            // the properties of the shape: ID, type, dimensions, color
+            parser.reset(line, start, end);
+            int ID = parser.nextInt();
+            int type = parser.nextShapeType();
+            int count = parser.readInts();
 
-                    // create a shape depending on the type
-                    if (shapeData[1].equals("ellipse")) {
-                        shape = new Ellipse(x1, y1, x2, y2, color);
-                    }
-                    else if (shapeData[1].equals("rectangle")) {
-                        shape = new Rectangle(x1, y1, x2, y2, color);
-                    }
-                    else {
-                        shape = new Segment(x1, y1, x2, y2, color);
-                    }
-                }
+            // the last number is the color
+            Shape shape = null;
+            if (!parser.hasError() && count >= 1) {
+                shape = parser.buildShape(type, count - 1, parser.value(count - 1));
+            }
 
-                // add this current shape to the editor sketch
+            // add this current shape to the editor sketch (skipping it if it was malformed)
+            if (shape != null) {
                 addShape(ID, shape);
             }
+            else {
+                ok = false;
+            }
+            start = end + 1;
         }
+        return ok;
     }
 
     /**
@@ -187,92 +267,79 @@ public class SketchEC {
      *                               "<color> <ID> <RGB>" for change color
      *                               "<move> <ID> <dx> <dy>" for move
      * @param line      // the message
+     * @return false (leaving the sketch alone) if the message was malformed
      */
-    public void handleMessage(String line) {
+    public boolean handleMessage(String line) {
+        // the parser is shared, and the doodle server's communicators all apply messages at once
+        lock.lock();
+        try {
+            return apply(line);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
 
-        String[] message = line.split(" ");
-        Shape shape;
-        int ID;
+    /**
+     * handleMessage, with the lock held
+     */
+    private boolean apply(String line) {
+        parser.reset(line);
+        int op = parser.nextOp();
 
         // if the method is add
-        if (message[0].equals("add")) {
-
-            // if the shape is a polyline
-            if (message[1].equals("polyline")) {
-
-                // instantiate the shape
-                shape = new Polyline();
-
-                // go through all of the points in the list
-                for (int i = 2; i < message.length - 2; i += 2) {
-
-                    // add it to the array list of the shape
-                    ((Polyline) shape).addPoints(Integer.parseInt(message[i]), Integer.parseInt(message[i + 1]));
-                }
-
-                // set the color of the shape
-                shape.setColor(new Color(Integer.parseInt(message[message.length - 2])));
-
-                // save the id of the shape
-                ID = Integer.parseInt(message[message.length - 1]);
+        if (op == OpParser.ADD) {
+            int type = parser.nextShapeType();
+            int count = parser.readInts();
+            if (parser.hasError() || count < 2) {
+                return false;
             }
 
-            // if it's a triangle
-            else if (message[1].equals("triangle")){
-                // get all of the dimensions
-                int x1 = Integer.parseInt(message[2]);
-                int x2 = Integer.parseInt(message[3]);
-                int y = Integer.parseInt(message[4]);
-                int h = Integer.parseInt(message[5]);
-                Color color = new Color(Integer.parseInt(message[6]));
-                ID = Integer.parseInt(message[7]);
-
-                shape = new Triangle(x1, x2, y, h, color);
-            }
-
-            // if it's any other shape
-            else {
-
-                // get the dimensions
-                int x1 = Integer.parseInt(message[2]);
-                int y1 = Integer.parseInt(message[3]);
-                int x2 = Integer.parseInt(message[4]);
-                int y2 = Integer.parseInt(message[5]);
-                Color color = new Color(Integer.parseInt(message[6]));
-                ID = Integer.parseInt(message[7]);
-
-                // create the shape depending on the type
-                if (message[1].equals("ellipse")) {
-                    shape = new Ellipse(x1, y1, x2, y2, color);
-                }
-                else if (message[1].equals("rectangle")) {
-                    shape = new Rectangle(x1, y1, x2, y2, color);
-                }
-                else {
-                    shape = new Segment(x1, y1, x2, y2, color);
-                }
+            // the last two numbers are the color and the ID of the shape
+            Shape shape = parser.buildShape(type, count - 2, parser.value(count - 2));
+            if (shape == null) {
+                return false;
             }
 
             // add the shape to the map of sketch
-            addShape(ID, shape);
+            addShape(parser.value(count - 1), shape);
         }
         // if the method is delete
-        else if (message[0].equals("delete")) {
+        else if (op == OpParser.DELETE) {
+            int ID = parser.nextInt();
+            if (!parser.finished()) {
+                return false;
+            }
 
             // remove the shape from the sketch
-            removeShape(Integer.parseInt(message[1]));
+            removeShape(ID);
         }
         // if the method is move
-        else if (message[0].equals("move")) {
+        else if (op == OpParser.MOVE) {
+            int ID = parser.nextInt();
+            int dx = parser.nextInt();
+            int dy = parser.nextInt();
+            if (!parser.finished()) {
+                return false;
+            }
 
             // move the shape in the sketch
-            moveShape(Integer.parseInt(message[1]), Integer.parseInt(message[2]), Integer.parseInt(message[3]));
+            moveShape(ID, dx, dy);
         }
-        // if the recolor is move
-        else if (message[0].equals("color")) {
+        // if the method is recolor
+        else if (op == OpParser.COLOR) {
+            int ID = parser.nextInt();
+            int rgb = parser.nextInt();
+            if (!parser.finished()) {
+                return false;
+            }
 
             // recolor the shape in the sketch
-            setColor(Integer.parseInt(message[1]), new Color(Integer.parseInt(message[2])));
+            setColor(ID, OpParser.color(rgb));
+        }
+        else {
+            return false;
         }
+        return true;
     }
 }
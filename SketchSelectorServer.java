@@ -0,0 +1,356 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A sketch server that handles all of its clients with a small, fixed number of event loops
+ * instead of one thread per connection (as in SketchServer)
+ *
+ * Each event loop owns a Selector and a share of the connections; reads are non-blocking and
+ * are cut up into the same one-op-per-line messages that Sketch.handleMessage understands
+ */
+public class SketchSelectorServer extends SketchServer {
+	private ServerSocketChannel listen;							// for accepting connections
+	private EventLoop[] loops;									// the threads doing all of the reading and writing
+	private Set<Connection> connections;						// all the connections with clients
+
+	public SketchSelectorServer(ServerSocketChannel listen, int numLoops) {
+		this.listen = listen;
+		loops = new EventLoop[numLoops];
+		connections = ConcurrentHashMap.newKeySet();
+	}
+
+	/**
+	 * Starts the event loops, then hands each accepted connection to one of them in turn
+	 */
+	@Override
+	public void getConnections() throws IOException {
+		start();
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(i);
+			loops[i].setDaemon(true);
+			loops[i].start();
+		}
+
+		System.out.println("server ready for connections");
+		int next = 0;
+		while (true) {
+			SocketChannel channel = listen.accept();
+			channel.configureBlocking(false);
+			loops[next].register(channel);
+			next = (next + 1) % loops.length;
+		}
+	}
+
+	/**
+	 * Sends the message to all clients but one (see SketchServer.broadcast)
+	 * The message is encoded once and only queued on each connection
+	 */
+	@Override
+	public void broadcast(String msg, SketchClient except) {
+		byte[] bytes = (msg + "\n").getBytes(StandardCharsets.UTF_8);
+		lock.lock();
+		try {
+			for (Connection conn : connections) {
+				if (conn.client != except) {
+					conn.send(bytes);
+				}
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * How many messages each connection still has waiting to be written, to see who is lagging
+	 */
+	public Map<SocketAddress, Integer> getConnectionQueueDepths() {
+		Map<SocketAddress, Integer> depths = new HashMap<>();
+		for (Connection conn : connections) {
+			depths.put(conn.address, conn.queued.get());
+		}
+		return depths;
+	}
+
+	/**
+	 * One thread with its own Selector, serving a subset of the connections
+	 */
+	private class EventLoop extends Thread {
+		private Selector selector;
+		private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();	// work handed over from other threads
+
+		EventLoop(int index) throws IOException {
+			super("sketch-loop-" + index);
+			selector = Selector.open();
+		}
+
+		/**
+		 * Adds a new connection to this loop (called from the accepting thread)
+		 * It is let in with its first line, which may ask to resume (see SketchServerCommunicator.run),
+		 * or as a new client if it has said nothing after FIRST_MESSAGE_MILLIS
+		 */
+		void register(SocketChannel channel) {
+			execute(() -> {
+				try {
+					Connection conn = new Connection(channel, this);
+					conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+					System.out.println("someone connected");
+					CompletableFuture.delayedExecutor(SketchServerCommunicator.FIRST_MESSAGE_MILLIS, TimeUnit.MILLISECONDS, this::execute)
+							.execute(conn::join);
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+		}
+
+		/**
+		 * Runs the task on this loop's thread
+		 */
+		void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					selector.select();
+
+					// do any work other threads gave us
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+
+					// handle the sockets that are ready
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						Connection conn = (Connection) key.attachment();
+						try {
+							if (key.isValid() && key.isReadable()) {
+								conn.read();
+							}
+							if (key.isValid() && key.isWritable()) {
+								conn.write();
+							}
+						}
+						catch (IOException e) {
+							conn.close();
+						}
+					}
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * The state of one client: partial input line and messages waiting to be written
+	 */
+	private class Connection {
+		private SocketChannel channel;
+		private EventLoop loop;						// the only thread that touches the channel
+		private SelectionKey key;
+		private SocketAddress address;
+
+		private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+		private byte[] line = new byte[256];		// the bytes of the current (not yet finished) line
+		private int lineLength = 0;
+		private final SketchClient client = new SketchClient(this::sendText);	// what the server keeps about this client
+		private boolean joined = false;				// whether it has been let in yet (only touched by the loop)
+
+		private Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>();
+		private AtomicInteger queued = new AtomicInteger();				// how many messages are in the outbox
+		private AtomicBoolean writeRequested = new AtomicBoolean();		// whether the loop has been asked to write
+
+		Connection(SocketChannel channel, EventLoop loop) throws IOException {
+			this.channel = channel;
+			this.loop = loop;
+			address = channel.getRemoteAddress();
+		}
+
+		/**
+		 * Lets the client in as a new one, unless it is already in (or gone): tells it the position
+		 * and current state of the world, then keeps it up to date
+		 */
+		void join() {
+			if (joined || !channel.isOpen()) {
+				return;
+			}
+			joined = true;
+			runInSequence(() -> {
+				sendWorld();
+				connections.add(this);
+			});
+		}
+
+		/**
+		 * Lets the client back in after it lost its connection (see SketchServer.resume)
+		 * @param request its "resume <epoch> <seq>"
+		 */
+		void resume(String request) {
+			joined = true;
+			runInSequence(() -> {
+				ArrayList<String> missed = missed(request);
+				if (missed != null) {
+					for (String op : missed) {
+						sendText(op);
+					}
+				}
+				else {
+					sendWorld();
+				}
+				connections.add(this);
+			});
+		}
+
+		/**
+		 * Sends the client the position and a snapshot of the world (on the sequencer)
+		 */
+		private void sendWorld() {
+			sendText(position());
+			for (String chunk : getSketch().snapshot()) {
+				sendText(chunk);
+			}
+		}
+
+		/**
+		 * Reads whatever is available and handles every complete line in it
+		 */
+		void read() throws IOException {
+			int n = channel.read(readBuffer);
+			if (n == -1) {
+				close();
+				return;
+			}
+
+			readBuffer.flip();
+			while (readBuffer.hasRemaining()) {
+				byte b = readBuffer.get();
+				if (b == '\n') {
+					// drop a trailing carriage return, like BufferedReader.readLine does
+					int length = (lineLength > 0 && line[lineLength - 1] == '\r') ? lineLength - 1 : lineLength;
+					String msg = new String(line, 0, length, StandardCharsets.UTF_8);
+					lineLength = 0;
+
+					// a client's first line may ask to resume; anything else lets it in as a new one first
+					// (either way the line goes on to receive, so it is counted like every other message, see ClientOp)
+					if (!joined) {
+						if (msg.startsWith(OpTail.RESUME + " ")) {
+							resume(msg);
+						}
+						else {
+							join();
+						}
+					}
+
+					// this server only speaks text: a request for binary goes unanswered, so the client stays on text
+					receive(client, msg);
+				}
+				else {
+					if (lineLength == line.length) {
+						line = Arrays.copyOf(line, line.length * 2);
+					}
+					line[lineLength++] = b;
+				}
+			}
+			readBuffer.clear();
+		}
+
+		/**
+		 * Queues a message for the client and asks the loop to write it
+		 * If the client has fallen too far behind, it is disconnected instead
+		 */
+		void send(byte[] msg) {
+			if (queued.incrementAndGet() > SketchServerCommunicator.OUTBOX_CAPACITY) {
+				System.out.println("client too slow, dropping connection");
+				loop.execute(this::close);
+				return;
+			}
+			outbox.add(ByteBuffer.wrap(msg));
+
+			// only wake the loop if it doesn't already know there is something to write
+			if (writeRequested.compareAndSet(false, true)) {
+				loop.execute(() -> {
+					if (key.isValid()) {
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					}
+				});
+			}
+		}
+
+		/**
+		 * Queues a message for just this client
+		 */
+		void sendText(String msg) {
+			send((msg + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+
+		/**
+		 * Writes as much of the outbox as the socket will take
+		 */
+		void write() throws IOException {
+			writeRequested.set(false);
+
+			ByteBuffer buffer;
+			while ((buffer = outbox.peek()) != null) {
+				channel.write(buffer);
+				if (buffer.hasRemaining()) {
+					// the socket is full; wait until it is writable again
+					return;
+				}
+				outbox.poll();
+				queued.decrementAndGet();
+			}
+
+			// nothing left to write
+			key.interestOps(SelectionKey.OP_READ);
+			if (!outbox.isEmpty() && writeRequested.compareAndSet(false, true)) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+
+		/**
+		 * Clean up -- note that also remove self from the list so it doesn't broadcast here
+		 */
+		void close() {
+			// in sequence, so this can't overtake our own join (which would put us back on the list, dead)
+			runInSequence(() -> connections.remove(this));
+			key.cancel();
+			try {
+				channel.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Runs the server; optionally takes the number of event loops as an argument, then "wall" to hold the world in a WallSketch
+	 */
+	public static void main(String[] args) throws Exception {
+		int numLoops = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		ServerSocketChannel listen = ServerSocketChannel.open();
+		listen.bind(new InetSocketAddress(4242));
+		SketchSelectorServer server = new SketchSelectorServer(listen, numLoops);
+		server.setWallSketch(args.length > 1 && args[1].equals("wall"));
+		server.getConnections();
+	}
+}
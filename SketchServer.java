@@ -1,6 +1,12 @@
 import java.net.*;
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A server to handle sketches: getting requests from the clients,
@@ -14,66 +20,653 @@ import java.io.*;
 public class SketchServer {
 	private ServerSocket listen;						// for accepting connections
 	private ArrayList<SketchServerCommunicator> comms;	// all the connections with clients
-	private Sketch sketch;								// the state of the world
+	private SketchStore sketch;							// the state of the world (a Sketch, or a WallSketch: see setWallSketch)
+	protected final ReentrantLock lock = new ReentrantLock();	// guards comms; not synchronized, so virtual threads don't pin
+	private boolean virtualThreads = false;				// whether connections run on virtual threads instead of platform threads
+	private OpRing ops;									// ops (and joins) waiting for the sequencer, in arrival order
+	private Thread sequencer;							// takes them one at a time (see start)
+	private OpJournal journal;							// where applied ops are recorded, if anywhere
+	public static final int TAIL_CAPACITY = 65536;		// how many of the latest ops are kept for clients that reconnect
+	private final OpTail tail = new OpTail(TAIL_CAPACITY);	// those ops, by sequence number (only touched by the sequencer)
+	private final long epoch = System.currentTimeMillis();	// which run of the server this is, since sequence numbers start over
+	private volatile long opsResent = 0;				// how many ops were sent again to clients that resumed
+	private File journalDir;							// and the directory it (and its checkpoints) are in
+	private volatile long checkpointSeq = 0;			// the journal op the last checkpoint goes up to
 
-	private int currID = 0;
+	// Coalescing drag moves (only touched by the sequencer)
+	public static final long MAX_MOVE_WINDOW = 100;		// longest a move may be held back, in milliseconds
+	private volatile long moveWindow = 16_000_000;		// how long to keep merging moves of one shape, in nanoseconds
+	private OpParser moveParser = new OpParser();		// to pick the moves (and adds that already have IDs) out of the ops
+	private boolean movePending = false;				// whether a (merged) move is being held back
+	private int pendingID, pendingDx, pendingDy;		// the held-back move
+	private SketchClient pendingFrom;					// the client it came from, if it applied it itself (only its own moves are merged then)
+	private ArrayList<ClientOp> pendingOps = new ArrayList<>();	// that client's moves in it, to ack once it is applied (or nack if it can't be)
+	private long pendingSince;							// when the first move in it arrived
+	private volatile long opsReceived = 0;				// how many ops the sequencer has taken
+	private volatile long movesMerged = 0;				// how many of them were folded into an earlier move
+
+	// Shape IDs: handed out one at a time to plain adds, or in blocks to clients that pick their own (see IdLease)
+	public static final int MAX_LEASE = 1024;			// the most IDs one lease request gets
+	private final AtomicInteger currID = new AtomicInteger();	// the last ID handed out, either way
+	private final ThreadLocal<OpParser> leaseParser = ThreadLocal.withInitial(OpParser::new);	// to read lease requests and clients' own IDs, on their reading threads (and resume requests)
 
 	public SketchServer(ServerSocket listen) {
+		this();
 		this.listen = listen;
+	}
+
+	/**
+	 * A server holding the world but accepting connections some other way (see SketchSelectorServer)
+	 */
+	protected SketchServer() {
 		sketch = new Sketch();
 		comms = new ArrayList<SketchServerCommunicator>();
+		ops = new OpRing(65536);
 	}
 
-	public Sketch getSketch() {
+	/**
+	 * Starts the one thread that ever changes the world (once, however often it is called)
+	 * Done by openJournal and getConnections, after construction, so the thread never sees a server not yet built
+	 */
+	public synchronized void start() {
+		if (sequencer != null) {
+			return;
+		}
+		sequencer = new Thread(this::sequence, "sketch-sequencer");
+		sequencer.setDaemon(true);
+		sequencer.start();
+	}
+
+	public SketchStore getSketch() {
 		return sketch;
 	}
 
+	/**
+	 * @param virtualThreads whether to run each connection on a virtual thread instead of a platform thread
+	 */
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	/**
+	 * Whether to hold the world in a WallSketch (outside the heap, for canvases of millions of shapes) instead of a Sketch
+	 * Call before openJournal or getConnections
+	 */
+	public void setWallSketch(boolean wall) {
+		sketch = wall ? new WallSketch() : new Sketch();
+	}
+
+	/**
+	 * Starts a thread for one connection's work, virtual or daemon platform depending on the mode
+	 */
+	public Thread startThread(Runnable task) {
+		if (virtualThreads) {
+			return Thread.ofVirtual().start(task);
+		}
+		Thread thread = new Thread(task);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * @param millis how long consecutive moves of the same shape are merged before being applied and broadcast;
+	 *               0 turns merging off, and anything over MAX_MOVE_WINDOW is cut down to it
+	 */
+	public void setMoveWindow(long millis) {
+		moveWindow = Math.max(0, Math.min(millis, MAX_MOVE_WINDOW)) * 1_000_000;
+	}
+
+	/**
+	 * How many ops the server has received so far
+	 */
+	public long getOpsReceived() {
+		return opsReceived;
+	}
+
+	/**
+	 * How many moves were merged into an earlier move of the same shape rather than applied and broadcast
+	 */
+	public long getMovesMerged() {
+		return movesMerged;
+	}
+
 	/**
 	 * Get the current id of the shape
 	 */
 	public int getCurrID() {
-		currID += 1;				/// allows all IDs to be different
-		return currID;
+		return currID.incrementAndGet();		/// allows all IDs to be different
+	}
+
+	/**
+	 * Hands a client a block of IDs of its own, all above every ID handed out so far; safe to call from any thread
+	 * IDs a client never used are just skipped, never handed out again: a shape drawn now has to go on top,
+	 * and an old block's IDs would put it under everything made since
+	 * @param count how many IDs the client asked for (up to MAX_LEASE)
+	 */
+	public IdLease leaseIDs(int count) {
+		count = Math.max(1, Math.min(count, MAX_LEASE));
+		int first = currID.getAndAdd(count) + 1;
+		return new IdLease(first, first + count);
+	}
+
+
+	/**
+	 * Rebuilds the world from the latest checkpoint and the journal ops after it in the directory,
+	 * then records every op applied from now on in it
+	 * Call before accepting connections
+	 * @param fsyncMillis force recorded ops to disk at most this often; 0 forces after every batch, negative never
+	 */
+	public void openJournal(File dir, long fsyncMillis) throws IOException {
+		journal = new OpJournal(dir, fsyncMillis);
+		journalDir = dir;
+		long start = System.nanoTime();
+
+		Checkpoint checkpoint = Checkpoint.latest(dir);
+		if (checkpoint != null) {
+			for (String shape : checkpoint.shapes) {
+				sketch.handleMessage(Checkpoint.addMessage(shape));
+			}
+			currID.accumulateAndGet(checkpoint.currID, Math::max);
+			checkpointSeq = checkpoint.seq;
+		}
+		long loaded = System.nanoTime();
+
+		long replayed = journal.replay(checkpointSeq, this::replay);
+		long end = System.nanoTime();
+		System.out.println("recovered " + sketch.size() + " shapes from " + dir + " in " + (end - start) / 1_000_000 + " ms: "
+				+ (checkpoint != null ? checkpoint.count : 0) + " from the checkpoint in " + (loaded - start) / 1_000_000 + " ms, "
+				+ replayed + " ops after it in " + (end - loaded) / 1_000_000 + " ms");
+		journal.start();
+		start();
 	}
 
+	/**
+	 * Writes a checkpoint of the world to the journal's directory and deletes the journal segments it covers
+	 * The world is only copied (a list of the shapes' saved strings, or WallSketch's rows in bulk) in sequence
+	 * with the ops; making the strings and writing them happen on the caller's thread while ops keep being applied
+	 * @return the checkpoint, or null if nothing changed since the last one
+	 */
+	public Checkpoint checkpoint() throws IOException, InterruptedException {
+		// copy the world, and note where in the journal it is, between two ops
+		CompletableFuture<Checkpoint> taken = new CompletableFuture<>();
+		runInSequence(() -> {
+			long seq = journal.getAppended();
+			if (seq == checkpointSeq) {
+				taken.complete(null);
+				return;
+			}
+			Snapshot world = sketch.snapshot();
+			taken.complete(new Checkpoint(seq, currID.get(), world.size(), world.shapes()));
+			// later ops start a fresh segment, so everything before it can go once the checkpoint is down
+			journal.roll();
+		});
+		Checkpoint checkpoint;
+		try {
+			checkpoint = taken.get();
+		}
+		catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+		if (checkpoint == null) {
+			return null;
+		}
+
+		long start = System.nanoTime();
+		long bytes = checkpoint.write(journalDir);
+		checkpointSeq = checkpoint.seq;
+		int deleted = journal.truncate(checkpoint.seq);
+		System.out.println("checkpoint of " + checkpoint.count + " shapes at op " + checkpoint.seq + ": " + bytes / 1024 + " KB in "
+				+ (System.nanoTime() - start) / 1_000_000 + " ms, " + deleted + " journal segments deleted");
+		return checkpoint;
+	}
+
+	/**
+	 * Starts a background thread that checkpoints the world every so often (see checkpoint)
+	 * @param seconds how long between checkpoints
+	 */
+	public void startCheckpoints(long seconds) {
+		Thread checkpointer = new Thread(() -> {
+			try {
+				while (true) {
+					TimeUnit.SECONDS.sleep(seconds);
+					try {
+						checkpoint();
+					}
+					catch (IOException e) {
+						// the journal still has everything; try again next time
+						System.err.println("checkpoint failed: " + e);
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				// shutting down
+			}
+		}, "sketch-checkpoint");
+		checkpointer.setDaemon(true);
+		checkpointer.start();
+	}
+
+	/**
+	 * Applies an op from the journal, without recording or broadcasting it again
+	 */
+	private void replay(String line) {
+		if (!sketch.handleMessage(line)) {
+			return;
+		}
+		// new shapes have to get IDs after every one already handed out
+		if (line.startsWith("add")) {
+			currID.accumulateAndGet(Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1)), Math::max);
+		}
+	}
+
+	/**
+	 * Hands one message from a client to the sequencer, first taking care of what is the client's own:
+	 * a request for IDs (or to apply its own ops, see ClientOp) is answered right away, and an add carrying
+	 * an ID that isn't one of the client's own has it taken off, so the sequencer picks one as usual
+	 * Call for every message read from the client, in order (so they are numbered as the client numbers them)
+	 */
+	public void receive(SketchClient client, String line) {
+		long number = client.count();
+		OpParser parser = leaseParser.get();
+
+		// answered by the connection itself
+		if (line.equals(OpCodec.BINARY) || line.startsWith(OpTail.RESUME + " ")) {
+			return;
+		}
+
+		// from now on the client applies its own ops, and gets acks for them instead of echoes
+		if (line.equals(ClientOp.OPTIMISTIC)) {
+			client.setOptimistic(true);
+			client.send(ClientOp.OPTIMISTIC);
+			return;
+		}
+
+		// a request for IDs: no need to wait for the sequencer, the counter is atomic
+		if (line.startsWith(IdLease.LEASE)) {
+			parser.reset(line, IdLease.LEASE.length(), line.length());
+			int count = parser.nextInt();
+			if (parser.finished()) {
+				IdLease lease = leaseIDs(count);
+				client.getLeases().add(lease);
+				client.send(lease.toMessage());
+			}
+			return;
+		}
+
+		ClientOp op = client.isOptimistic() ? new ClientOp(line, client, number) : null;
+		int id = parser.addID(line);
+		if (id != -1) {
+			ArrayList<IdLease> leases = client.getLeases();
+			boolean own = false;
+			for (int i = 0; i < leases.size() && !own; i++) {
+				own = leases.get(i).claim(id);
+			}
+			leases.removeIf(lease -> lease.remaining() == 0);
+			if (!own) {
+				line = line.substring(0, line.lastIndexOf(' '));
+				// the client already showed it with that ID; have it take that back
+				if (op != null) {
+					op.nack();
+					op = new ClientOp(line, client, number);
+				}
+			}
+		}
+		ops.publish(op != null ? op : line);
+	}
+
+	/**
+	 * Has the sequencer run the task in order with the ops, e.g. to snapshot the world for a new client
+	 * and start broadcasting to it without missing or repeating an op
+	 */
+	public void runInSequence(Runnable task) {
+		ops.publish(task);
+	}
+
+	/**
+	 * Lets a new client in: tells it the current state of the world, then includes it in every later broadcast
+	 */
+	public void join(SketchServerCommunicator comm) {
+		runInSequence(() -> {
+			comm.send(position());
+			comm.sendSnapshot(sketch.snapshot());
+			addCommunicator(comm);
+		});
+	}
+
+	/**
+	 * Lets a client back in after it lost its connection (see OpTail): sends it just the ops it missed
+	 * if they are all still kept, or else the current state of the world, then includes it in every later broadcast
+	 * @param request the client's "resume <epoch> <seq>"
+	 */
+	public void resume(SketchServerCommunicator comm, String request) {
+		runInSequence(() -> {
+			ArrayList<String> missed = missed(request);
+			if (missed != null) {
+				comm.sendOps(missed);
+			}
+			else {
+				comm.send(position());
+				comm.sendSnapshot(sketch.snapshot());
+			}
+			addCommunicator(comm);
+		});
+	}
+
+	/**
+	 * The ops a client that asked to resume missed (call on the sequencer)
+	 * @param request the client's "resume <epoch> <seq>"
+	 * @return the ops, or null if it has to be sent the position and a snapshot instead, as on joining
+	 * (the request is from another run of the server, or for ops no longer kept, or malformed)
+	 */
+	protected ArrayList<String> missed(String request) {
+		if (!request.startsWith(OpTail.RESUME + " ")) {
+			return null;
+		}
+		OpParser parser = leaseParser.get();
+		parser.reset(request, OpTail.RESUME.length(), request.length());
+		long clientEpoch = parser.nextLong();
+		long seq = parser.nextLong();
+		if (!parser.finished()) {
+			return null;
+		}
+
+		ArrayList<String> missed = clientEpoch == epoch ? tail.since(seq) : null;
+		if (missed != null) {
+			opsResent += missed.size();
+		}
+		return missed;
+	}
+
+	/**
+	 * Where the op stream is now (call on the sequencer)
+	 */
+	protected String position() {
+		return OpTail.POSITION + " " + epoch + " " + tail.last();
+	}
+
+	/**
+	 * How many ops were sent again to clients that resumed, instead of whole snapshots
+	 */
+	public long getOpsResent() {
+		return opsResent;
+	}
+
+	/**
+	 * The sequencer loop: takes ops in arrival order and applies them one at a time
+	 */
+	private void sequence() {
+		while (true) {
+			try {
+				Object event;
+				if (!movePending) {
+					event = ops.take();
+				}
+				else {
+					// don't hold a move back past its window, even if nothing else comes in
+					long wait = pendingSince + moveWindow - System.nanoTime();
+					event = wait > 0 ? ops.poll(wait) : null;
+					if (event == null) {
+						flushMove();
+						continue;
+					}
+				}
+
+				if (event instanceof Runnable) {
+					// everything before a join has to be in the world it sees
+					flushMove();
+					((Runnable) event).run();
+				}
+				else if (event instanceof ClientOp) {
+					// from a client that has already applied it itself: it gets an ack instead of the op
+					ClientOp op = (ClientOp) event;
+					opsReceived++;
+					if (mergeMove(op.line, op.client)) {
+						pendingOps.add(op);
+					}
+					else {
+						flushMove();
+						// one the world wouldn't take: the client takes it back instead of keeping what nobody else has
+						if (apply(op.line, op.client)) {
+							op.ack(tail.last());
+						}
+						else {
+							op.nack();
+						}
+					}
+				}
+				else {
+					opsReceived++;
+					if (!mergeMove((String) event, null)) {
+						flushMove();
+						apply((String) event, null);
+					}
+				}
+			}
+			catch (RuntimeException e) {
+				// a bad op shouldn't stop the whole server
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * If the op is a move, holds it back so that following moves of the same shape can be added to it
+	 * @return whether the op was a move (and so has been taken care of)
+	 */
+	private boolean mergeMove(String line, SketchClient from) {
+		if (moveWindow == 0) {
+			return false;
+		}
+		moveParser.reset(line);
+		if (moveParser.nextOp() != OpParser.MOVE) {
+			return false;
+		}
+		int id = moveParser.nextInt();
+		int dx = moveParser.nextInt();
+		int dy = moveParser.nextInt();
+		if (!moveParser.finished()) {
+			return false;
+		}
+
+		// another step of the same drag: just add it on
+		if (movePending && id == pendingID && from == pendingFrom) {
+			pendingDx += dx;
+			pendingDy += dy;
+			movesMerged++;
+			return true;
+		}
+
+		// a different shape: send the old move on, and start holding this one
+		flushMove();
+		movePending = true;
+		pendingID = id;
+		pendingFrom = from;
+		pendingDx = dx;
+		pendingDy = dy;
+		pendingSince = System.nanoTime();
+		return true;
+	}
+
+	/**
+	 * Applies and broadcasts the held-back move, if there is one (a net move of nothing is just dropped)
+	 */
+	private void flushMove() {
+		if (!movePending) {
+			return;
+		}
+		movePending = false;
+		boolean applied = true;
+		if (pendingDx != 0 || pendingDy != 0) {
+			applied = apply("move " + pendingID + " " + pendingDx + " " + pendingDy, pendingFrom);
+		}
+		if (!pendingOps.isEmpty()) {
+			// every move in it went in, or none did
+			if (applied) {
+				pendingOps.get(pendingOps.size() - 1).ack(tail.last());
+			}
+			else {
+				for (ClientOp op : pendingOps) {
+					op.nack();
+				}
+			}
+			pendingOps.clear();
+		}
+	}
+
+	/**
+	 * Handles one message from a client (on the sequencer):
+	 * assigns an ID to new shapes, updates the state of the world, and lets every client know of the change
+	 * @param from the client that sent it, if it already applied it itself (and so needs no echo), else null
+	 * @return false if the message was malformed (and so went no further)
+	 */
+	private boolean apply(String line, SketchClient from) {
+		// if the method is add (and the client didn't already give it an ID from its lease)
+		if (line.startsWith("add") && moveParser.addID(line) == -1) {
+			// get an ID, and tack it on so everyone agrees on it
+			line = line + " " + getCurrID();
+			// the client couldn't show it without its ID, so it needs the op back too
+			from = null;
+		}
+
+		// modify current state of the world based on message; a malformed one goes no further
+		if (!sketch.handleMessage(line)) {
+			System.out.println("ignoring malformed message: " + line);
+			return false;
+		}
+
+		// record it (on the journal's own thread), then let every client know of this change
+		if (journal != null) {
+			journal.append(line);
+		}
+		tail.add(line);
+		broadcast(line, from);
+		return true;
+	}
 
 	/**
 	 * The usual loop of accepting connections and firing off new threads to handle them
 	 */
 	public void getConnections() throws IOException {
+		start();
 		System.out.println("server ready for connections");
 		while (true) {
 			SketchServerCommunicator comm = new SketchServerCommunicator(listen.accept(), this);
-			comm.setDaemon(true);
-			comm.start();
-			addCommunicator(comm);
+			startThread(comm);
 		}
 	}
 
 	/**
 	 * Adds the communicator to the list of current communicators
 	 */
-	public synchronized void addCommunicator(SketchServerCommunicator comm) {
-		comms.add(comm);
+	public void addCommunicator(SketchServerCommunicator comm) {
+		lock.lock();
+		try {
+			comms.add(comm);
+			printConnectionStats(comms.size());
+		}
+		finally {
+			lock.unlock();
+		}
 	}
 
 	/**
 	 * Removes the communicator from the list of current communicators
 	 */
-	public synchronized void removeCommunicator(SketchServerCommunicator comm) {
-		comms.remove(comm);
+	public void removeCommunicator(SketchServerCommunicator comm) {
+		lock.lock();
+		try {
+			comms.remove(comm);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Prints how many connections there are and how much heap each costs, to compare thread modes
+	 */
+	protected void printConnectionStats(int connections) {
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		System.out.println(connections + " connections (" + (virtualThreads ? "virtual" : "platform") + " threads), "
+				+ (used / 1024) + " KB heap in use, " + (used / 1024 / connections) + " KB per connection; "
+				+ movesMerged + " of " + opsReceived + " ops merged into earlier moves");
 	}
 
 	/**
 	 * Sends the message from the one communicator to all (including the originator)
+	 * Only queues the message on each connection, so a slow client can't hold up the rest
+	 */
+	public void broadcast(String msg) {
+		broadcast(msg, null);
+	}
+
+	/**
+	 * Sends the message to all clients but one (the one that sent it, when it already applied it itself)
+	 */
+	public void broadcast(String msg, SketchClient except) {
+		lock.lock();
+		try {
+			for (SketchServerCommunicator comm : comms) {
+				if (comm.getClient() != except) {
+					comm.send(msg);
+				}
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * How many messages each connection still has waiting to be written, to see who is lagging
 	 */
-	public synchronized void broadcast(String msg) {
-		for (SketchServerCommunicator comm : comms) {
-			comm.send(msg);
+	public Map<SketchServerCommunicator, Integer> getQueueDepths() {
+		lock.lock();
+		try {
+			Map<SketchServerCommunicator, Integer> depths = new HashMap<>();
+			for (SketchServerCommunicator comm : comms) {
+				depths.put(comm, comm.getQueueDepth());
+			}
+			return depths;
+		}
+		finally {
+			lock.unlock();
 		}
 	}
 
+	/**
+	 * Runs the server; pass "virtual" to run each connection on a virtual thread, "wall" to hold the world in a WallSketch,
+	 * "journal=<directory>" to keep (and recover) the world there, "fsync=<millis>" for how often to force it to disk,
+	 * and "checkpoint=<seconds>" for how often to checkpoint it (so restarts don't replay the whole journal)
+	 */
 	public static void main(String[] args) throws Exception {
-		new SketchServer(new ServerSocket(4242)).getConnections();
+		SketchServer server = new SketchServer(new ServerSocket(4242));
+		String journalDir = null;
+		long fsyncMillis = 0;
+		long checkpointSeconds = 60;
+		for (String arg : args) {
+			if (arg.equals("virtual")) {
+				server.setVirtualThreads(true);
+			}
+			else if (arg.equals("wall")) {
+				server.setWallSketch(true);
+			}
+			else if (arg.startsWith("journal=")) {
+				journalDir = arg.substring("journal=".length());
+			}
+			else if (arg.startsWith("fsync=")) {
+				fsyncMillis = Long.parseLong(arg.substring("fsync=".length()));
+			}
+			else if (arg.startsWith("checkpoint=")) {
+				checkpointSeconds = Long.parseLong(arg.substring("checkpoint=".length()));
+			}
+		}
+		if (journalDir != null) {
+			server.openJournal(new File(journalDir), fsyncMillis);
+			server.startCheckpoints(checkpointSeconds);
+		}
+		server.getConnections();
 	}
 }
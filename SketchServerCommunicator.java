@@ -1,6 +1,10 @@
 import java.awt.*;
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * Edited by: Maria Paula Mora
@@ -10,85 +14,203 @@ import java.net.Socket;
  *
  * Starter Code author: Chris Bailey-Kellogg
  */
-public class SketchServerCommunicator extends Thread {
+public class SketchServerCommunicator implements Runnable {
+	public static final int OUTBOX_CAPACITY = 4096;	// how many messages a client may fall behind before being dropped
+	public static final int FIRST_MESSAGE_MILLIS = 250;	// how long to wait for a returning client's resume before joining it afresh
+
 	private Socket sock;					// to talk with client
-	private BufferedReader in;				// from client
-	private PrintWriter out;				// to client
+	private InputStream in;					// from client
+	private OutputStream out;				// to client
 	private SketchServer server;			// handling communication for
 
+	private BlockingQueue<Object> outbox;	// messages (and snapshots, and runs of missed ops) waiting to be written to the client
+	private Thread writer;					// drains the outbox onto the socket
+	private final SketchClient client = new SketchClient(this::send);	// what the server keeps about this client
+
 	public SketchServerCommunicator(Socket sock, SketchServer server) {
 		this.sock = sock;
 		this.server = server;
+		outbox = new ArrayBlockingQueue<>(OUTBOX_CAPACITY);
 	}
 
 	/**
-	 * Sends a message to the client
+	 * Queues a message for the client; never blocks on the socket
+	 * If the client has fallen too far behind, it is disconnected instead
 	 * @param msg
 	 */
 	public void send(String msg) {
-		out.println(msg);
+		if (!outbox.offer(msg)) {
+			System.out.println("client too slow, dropping connection");
+			close();
+		}
 	}
 
 	/**
-	 * Keeps listening for and handling (your code) messages from the client
+	 * Queues a snapshot of the world for the client, to be written in chunks
+	 * Anything sent after it reaches the client after the snapshot's end
 	 */
+	public void sendSnapshot(Snapshot snapshot) {
+		if (!outbox.offer(snapshot)) {
+			System.out.println("client too slow, dropping connection");
+			close();
+		}
+	}
 
+	/**
+	 * Queues a run of messages for the client (the ops it missed), taking just one place in the outbox
+	 */
+	public void sendOps(ArrayList<String> ops) {
+		if (!outbox.offer(ops)) {
+			System.out.println("client too slow, dropping connection");
+			close();
+		}
+	}
 
-	public void run() {
-		try {
-			System.out.println("someone connected");
+	public SketchClient getClient() {
+		return client;
+	}
 
-			// Communication channel
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			out = new PrintWriter(sock.getOutputStream(), true);
+	/**
+	 * How many messages are waiting to be written to this client
+	 */
+	public int getQueueDepth() {
+		return outbox.size();
+	}
 
-			// Tell the client the current state of the world
-			send(server.getSketch().toString());
+	/**
+	 * Writes queued messages to the client, flushing once per batch instead of once per message
+	 */
+	private void drainOutbox() {
+		ArrayList<Object> batch = new ArrayList<>();
+		boolean binary = false;		// whether we have told the client we're switching to binary frames
+		try {
+			while (!sock.isClosed()) {
+				// wait for at least one message, then grab everything else already waiting
+				batch.add(outbox.take());
+				outbox.drainTo(batch);
+
+				for (Object item : batch) {
+					// a snapshot is written one chunk at a time (and a run of ops one at a time)
+					if (item instanceof Iterable) {
+						for (Object chunk : (Iterable<?>) item) {
+							OpCodec.writeMessage(out, (String) chunk, binary);
+						}
+						continue;
+					}
+
+					String msg = (String) item;
+					OpCodec.writeMessage(out, msg, binary);
+
+					// everything after our answer to the client's request goes out as binary frames
+					if (msg.equals(OpCodec.BINARY)) {
+						binary = true;
+					}
+				}
+				out.flush();
+				batch.clear();
+			}
+		}
+		catch (InterruptedException e) {
+			// connection is closing
+		}
+		catch (IOException e) {
+			close();
+		}
+	}
 
+	/**
+	 * Closes the socket so both the reader and the writer stop
+	 */
+	private void close() {
+		try {
+			sock.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
 
-			// Keep getting and handling messages from the client
+	/**
+	 * Waits up to FIRST_MESSAGE_MILLIS for the client to send something, without taking any of it
+	 * @return whether anything arrived (or the client hung up) in that time
+	 */
+	private boolean firstMessageArrives() throws IOException {
+		sock.setSoTimeout(FIRST_MESSAGE_MILLIS);
+		try {
+			in.mark(1);
+			in.read();
+			in.reset();
+			return true;
+		}
+		catch (SocketTimeoutException e) {
+			return false;
+		}
+		finally {
+			sock.setSoTimeout(0);
+		}
+	}
 
-			String line;
+	/**
+	 * Keeps listening for and handling (your code) messages from the client
+	 */
 
-			while ((line = in.readLine()) != null) {
 
-				System.out.println("recieved: " + line);
+	public void run() {
+		try {
+			System.out.println("someone connected");
 
-				/**
-				 * modify the state of the server world while notifying other comms of changes
-				 */
+			// Communication channel
+			in = new BufferedInputStream(sock.getInputStream());
+			out = new BufferedOutputStream(sock.getOutputStream());
 
-				// if the method is add
-				if (line.startsWith("add")) {
+			// start writing to the client in the background
+			writer = server.startThread(this::drainOutbox);
 
-					// get an ID
-					int ID = server.getCurrID();
+			// Tell the client the current state of the world (or, if it is coming back, what it missed), then keep it up to date
+			// A client coming back says so first thing; one that says nothing for a moment (or only listens) just joins
+			String line;
+			if (firstMessageArrives()) {
+				line = OpCodec.readMessage(in);
+				// the resume still goes on to receive, below, so it is counted like every other message (see ClientOp)
+				if (line != null && line.startsWith(OpTail.RESUME + " ")) {
+					server.resume(this, line);
+				}
+				else {
+					server.join(this);
+				}
+			}
+			else {
+				server.join(this);
+				line = OpCodec.readMessage(in);
+			}
 
-					// modify current state of the world based on message
-					server.getSketch().handleMessage(line + " " + ID);
 
-					// tell all of the clients that shape has been added
-					server.broadcast(line + " " + ID);
+			// Keep getting and handling messages from the client
 
+			for (; line != null; line = OpCodec.readMessage(in)) {
+				// the client can take binary frames; agree, and switch after this answer
+				if (line.equals(OpCodec.BINARY)) {
+					send(OpCodec.BINARY);
 				}
 
-				else {
-					// modify current state of the world based on message
-					server.getSketch().handleMessage(line);
-
-					// let every client know of this change
-					server.broadcast(line);
-				}
+				// modify the state of the server world while notifying other comms of changes
+				server.receive(client, line);
 			}
-
-			// Clean up -- note that also remove self from server's list so it doesn't broadcast here
-			server.removeCommunicator(this);
-			out.close();
-			in.close();
-			sock.close();
 		}
 		catch (IOException e) {
-			e.printStackTrace();
+			// a closed socket here just means the client went away (or was dropped for being slow)
+			if (!sock.isClosed()) {
+				e.printStackTrace();
+			}
+		}
+		finally {
+			// Clean up -- note that also remove self from server's list so it doesn't broadcast here
+			// (in sequence, so this can't overtake our own join)
+			server.runInSequence(() -> server.removeCommunicator(this));
+			if (writer != null) {
+				writer.interrupt();
+			}
+			close();
 		}
 	}
 }
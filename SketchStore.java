@@ -0,0 +1,41 @@
+import java.awt.Graphics;
+
+/**
+ * Where a world of shapes is kept, by ID (a higher ID is drawn on top)
+ *
+ * Sketch keeps a Shape object for every shape; WallSketch keeps the shapes as rows of columns outside the heap,
+ * for very large canvases. Both take the same messages and hand out the same strings, so either can hold the world.
+ */
+public interface SketchStore {
+	/**
+	 * Handles a message: "add <shape> <numbers...> <RGB> <ID>", "delete <ID>", "move <ID> <dx> <dy>" or "color <ID> <RGB>"
+	 * @return false (leaving the world alone) if the message was malformed
+	 */
+	public boolean handleMessage(String line);
+
+	/**
+	 * Adds the shapes in a string of the form "<ID> <shapeString>,<ID> <shapeString>,..."
+	 * @return false if any of the shapes were malformed (those are skipped)
+	 */
+	public boolean parseSketch(String line);
+
+	/**
+	 * @return the ID of the top-most shape containing the point, or -1 if there is none
+	 */
+	public int shapeAt(int x, int y);
+
+	/**
+	 * Draws the shapes, bottom-most first
+	 */
+	public void draw(Graphics g);
+
+	/**
+	 * @return a point-in-time copy of the world, to send to a joining client (or write to a checkpoint)
+	 */
+	public Snapshot snapshot();
+
+	/**
+	 * @return how many shapes there are
+	 */
+	public int size();
+}
@@ -0,0 +1,397 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that clients editing the same shapes at once, far from the server, all end up with the server's world
+ *
+ * Runs a SketchServer, and a proxy in front of it on the editor's port that holds back everything going either way
+ * for a while; then two clients (the real EditorCommunicator, with no window) make random adds, moves, recolors
+ * and deletes through the proxy at the same time, many of them on the same few shapes. Their first ops go before the
+ * server has agreed to ack them, and one client adds a shape with an ID leased to the other.
+ * Once they stop, both have to come to the server's world; if they don't, it stops with an exception.
+ *
+ * With "cuts", the proxy instead cuts one client's connection partway through each of a few rounds of editing,
+ * and it has to pick up where it left off from the ops the server still keeps (see OpTail); then the proxy turns
+ * it away while the other makes more ops than those, and it has to come back with a snapshot.
+ *
+ * Run with: java SketchSyncCheck [selector] [ops] [delay millis]
+ *      or: java SketchSyncCheck [selector] cuts [outage ops]
+ * ("selector" to run a SketchSelectorServer instead). Needs the editor's port (4242) free, for the proxy.
+ */
+public class SketchSyncCheck {
+	private static final long SETTLE_MILLIS = 10_000;	// how long the clients get to come to the server's world
+	private static final int CUTS = 5, ROUND_OPS = 1000;	// how many times the connection is cut, and the ops each client makes around each
+
+	private static SketchServer server;
+	private static DelayProxy proxy;
+
+	private static boolean selector = false;		// whether to run a SketchSelectorServer
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("selector")) {
+			selector = true;
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
+		// the clients and the server's connections keep running, so leave on the outcome either way
+		try {
+			if (args.length > 0 && args[0].equals("cuts")) {
+				cuts(args.length > 1 ? Integer.parseInt(args[1]) : 70_000);
+			}
+			else {
+				concurrent(args.length > 0 ? Integer.parseInt(args[0]) : 3000, args.length > 1 ? Long.parseLong(args[1]) : 75);
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Two clients making ops at once, each the delay from the server
+	 */
+	private static void concurrent(int ops, long delay) throws Exception {
+		startServer(delay);
+		Client a = new Client(new Random(1)), b = new Client(new Random(2));
+		Thread editing = new Thread(() -> a.edit(ops / 2, 1));
+		editing.start();
+		b.edit(ops - ops / 2 - 1, 1);
+		// an ID that was leased to b (the server takes it off and picks one, and a takes back the one it showed)
+		int stolen = b.comm.takeID();
+		if (stolen == -1) {
+			throw new RuntimeException("b was never leased any IDs");
+		}
+		a.comm.sendOp("add ellipse 10 10 40 40 0 " + stolen);
+		editing.join();
+
+		settle(a, b);
+		System.out.printf("%,d ops from two clients %d ms from the server each way: both have the server's world (%,d shapes)%n",
+				ops, delay, server.getSketch().size());
+		System.out.printf("our own ops shown in %.1f us on average, %.1f ms at most (a round trip is %d ms)%n",
+				(a.showNanos + b.showNanos) / 1e3 / (a.shown + b.shown), Math.max(a.mostNanos, b.mostNanos) / 1e6, 2 * delay);
+	}
+
+	/**
+	 * Two clients making ops at once, one of them losing its connection partway through each round,
+	 * then being kept away while the other makes the given number of ops
+	 */
+	private static void cuts(int outage) throws Exception {
+		startServer(75);
+		// b's connection is never cut
+		Client b = new Client(new Random(2));
+		proxy.keep();
+		Client a = new Client(new Random(1));
+
+		for (int cut = 1; cut <= CUTS; cut++) {
+			long resent = server.getOpsResent();
+			Thread editing = new Thread(() -> a.edit(ROUND_OPS, 1));
+			editing.start();
+			b.edit(ROUND_OPS / 2, 1);
+			proxy.cut();
+			b.edit(ROUND_OPS - ROUND_OPS / 2, 1);
+			editing.join();
+			settle(a, b);
+
+			resent = server.getOpsResent() - resent;
+			if (resent == 0) {
+				throw new RuntimeException("cut " + cut + ": the client came back with a snapshot, not the ops it missed");
+			}
+			System.out.printf("cut %d: picked up where it left off (%,d ops resent); both have the server's world%n", cut, resent);
+		}
+
+		long resent = server.getOpsResent();
+		proxy.setDown(true);
+		proxy.cut();
+		b.edit(outage, 20);
+		proxy.setDown(false);
+		settle(a, b);
+		resent = server.getOpsResent() - resent;
+		System.out.printf("after %,d ops away (the server keeps the last %,d): %s; both have the server's world (%,d shapes)%n",
+				outage, SketchServer.TAIL_CAPACITY, resent == 0 ? "came back with a snapshot" : resent + " ops resent", server.getSketch().size());
+	}
+
+	/**
+	 * Starts a server, and the proxy in front of it on the editor's port
+	 */
+	private static void startServer(long delay) throws IOException {
+		int port;
+		if (selector) {
+			ServerSocketChannel listen = ServerSocketChannel.open();
+			listen.bind(new InetSocketAddress(0));
+			server = new SketchSelectorServer(listen, 2);
+			port = listen.socket().getLocalPort();
+		}
+		else {
+			ServerSocket listen = new ServerSocket(0);
+			server = new SketchServer(listen);
+			port = listen.getLocalPort();
+		}
+		Thread accepting = new Thread(() -> {
+			try {
+				server.getConnections();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		accepting.setDaemon(true);
+		accepting.start();
+		proxy = new DelayProxy(4242, port, delay);
+		proxy.start();
+	}
+
+	/**
+	 * Waits until every client has the server's world
+	 */
+	private static void settle(Client... clients) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+		while (true) {
+			String world = server.getSketch().toString();
+			boolean same = true;
+			for (Client client : clients) {
+				same = same && client.sketch.toString().equals(world);
+			}
+			if (same) {
+				return;
+			}
+			if (System.currentTimeMillis() > deadline) {
+				throw new RuntimeException("a client didn't come to the server's world");
+			}
+			TimeUnit.MILLISECONDS.sleep(50);
+		}
+	}
+
+	/**
+	 * An editor without a window: makes random ops through a communicator, as Editor does with the mouse
+	 */
+	private static class Client implements SketchView {
+		final Sketch sketch = new Sketch();
+		final EditorCommunicator comm;
+		final Random random;
+		long shown = 0, showNanos = 0, mostNanos = 0;	// our own ops made, and how long it took to show them
+		private ArrayList<Integer> ids = new ArrayList<>();	// the shapes we know of, as of a few ops ago
+
+		Client(Random random) {
+			this.random = random;
+			comm = new EditorCommunicator("localhost", this);
+			comm.start();
+		}
+
+		public Sketch getSketch() {
+			return sketch;
+		}
+
+		public void requestRepaint(int ops) {
+		}
+
+		/**
+		 * Makes that many random ops, a few each millisecond or so
+		 */
+		void edit(int ops, int perMilli) {
+			try {
+				for (int i = 0; i < ops; i++) {
+					// looking the shapes up takes a copy of them all, so not every op
+					if (i % 16 == 0) {
+						ids = new ArrayList<>(sketch.getMap().keySet());
+					}
+					randomOp();
+					if (i % perMilli == perMilli - 1) {
+						TimeUnit.MILLISECONDS.sleep(1);
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				// stop editing
+			}
+		}
+
+		/**
+		 * Adds an ellipse, or moves, recolors or deletes a shape (half the time one of the few newest, to have both
+		 * clients at the same shapes)
+		 */
+		void randomOp() {
+			int kind = random.nextInt(20);
+			long start = System.nanoTime();
+			if (kind < 3 || ids.isEmpty()) {
+				int x = random.nextInt(500), y = random.nextInt(500);
+				String shape = "ellipse " + x + " " + y + " " + (x + 30) + " " + (y + 30) + " " + random.nextInt(1 << 24);
+				int id = comm.takeID();
+				if (id != -1) {
+					comm.sendOp("add " + shape + " " + id);
+				}
+				else {
+					// none of our own yet: the server picks one, and we see it when it comes back
+					comm.send("add " + shape);
+					return;
+				}
+			}
+			else {
+				int id = random.nextBoolean()
+						? ids.get(Math.max(0, ids.size() - 1 - random.nextInt(5)))
+						: ids.get(random.nextInt(ids.size()));
+				if (kind < 16) {
+					comm.sendMove(id, random.nextInt(11) - 5, random.nextInt(11) - 5);
+				}
+				else if (kind < 19) {
+					comm.sendOp("color " + id + " " + random.nextInt(1 << 24));
+				}
+				else {
+					comm.sendOp("delete " + id);
+				}
+			}
+			long nanos = System.nanoTime() - start;
+			shown++;
+			showNanos += nanos;
+			mostNanos = Math.max(mostNanos, nanos);
+		}
+	}
+
+	/**
+	 * Bytes that came through the proxy, and when (no bytes: the end)
+	 */
+	private static class Piece {
+		final long came = System.nanoTime();
+		final byte[] bytes;
+
+		Piece(byte[] bytes) {
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Passes connections on to the server, holding back everything going either way for the delay
+	 * Connections can be cut, and new ones turned away for a while
+	 */
+	private static class DelayProxy extends Thread {
+		private final ServerSocket listen;
+		private final int serverPort;
+		private final long delayNanos;
+		private final List<Socket[]> links = new CopyOnWriteArrayList<>();	// {client, server} of each connection passed on
+		private final Set<Socket[]> kept = ConcurrentHashMap.newKeySet();	// those never to be cut
+		private volatile boolean down = false;								// whether new connections are turned away
+
+		DelayProxy(int port, int serverPort, long delayMillis) throws IOException {
+			super("sync-proxy");
+			setDaemon(true);
+			listen = new ServerSocket(port);
+			this.serverPort = serverPort;
+			delayNanos = delayMillis * 1_000_000;
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					Socket client = listen.accept();
+					if (down) {
+						client.close();
+						continue;
+					}
+					Socket server = new Socket("localhost", serverPort);
+					links.add(new Socket[] {client, server});
+					pass(client, server);
+					pass(server, client);
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * Never cuts the connections passed on so far (waiting for the first one, if there are none yet)
+		 */
+		void keep() throws InterruptedException {
+			while (links.isEmpty()) {
+				TimeUnit.MILLISECONDS.sleep(10);
+			}
+			kept.addAll(links);
+		}
+
+		/**
+		 * Cuts every connection not kept, both ways at once
+		 */
+		void cut() throws IOException {
+			for (Socket[] link : links) {
+				if (!kept.contains(link)) {
+					link[0].close();
+					link[1].close();
+					links.remove(link);
+				}
+			}
+		}
+
+		/**
+		 * Turns away new connections (down), or lets them through again
+		 */
+		void setDown(boolean down) {
+			this.down = down;
+		}
+
+		/**
+		 * Passes whatever comes from one socket on to the other, each piece once the delay is up after it came
+		 * When either side closes, so does the other
+		 */
+		private void pass(Socket from, Socket to) {
+			BlockingQueue<Piece> held = new LinkedBlockingQueue<>();		// what came, in order
+			Thread reader = new Thread(() -> {
+				byte[] buffer = new byte[65536];
+				try {
+					InputStream in = from.getInputStream();
+					int n;
+					while ((n = in.read(buffer)) != -1) {
+						held.add(new Piece(Arrays.copyOf(buffer, n)));
+					}
+				}
+				catch (IOException e) {
+					// closed
+				}
+				held.add(new Piece(null));
+			});
+			Thread writer = new Thread(() -> {
+				try {
+					OutputStream out = to.getOutputStream();
+					while (true) {
+						Piece piece = held.take();
+						long wait = piece.came + delayNanos - System.nanoTime();
+						if (wait > 0) {
+							TimeUnit.NANOSECONDS.sleep(wait);
+						}
+						if (piece.bytes == null) {
+							break;
+						}
+						out.write(piece.bytes);
+						out.flush();
+					}
+				}
+				catch (IOException | InterruptedException e) {
+					// closed
+				}
+				try {
+					from.close();
+					to.close();
+				}
+				catch (IOException e) {
+					// already closed
+				}
+			});
+			reader.setDaemon(true);
+			writer.setDaemon(true);
+			reader.start();
+			writer.start();
+		}
+	}
+}
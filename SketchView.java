@@ -0,0 +1,17 @@
+/**
+ * What EditorCommunicator needs of whatever shows its sketch: Editor's window, or nothing at all
+ * (in a check that runs clients without a screen, see SketchSyncCheck)
+ */
+public interface SketchView {
+	/**
+	 * @return the sketch the server's updates go into, and our own ops are shown in
+	 */
+	public Sketch getSketch();
+
+	/**
+	 * Notes that updates were applied to the sketch, to be shown when it next suits
+	 * (called from the communicator's thread)
+	 * @param ops how many updates there were
+	 */
+	public void requestRepaint(int ops);
+}
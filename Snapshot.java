@@ -0,0 +1,94 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A point-in-time copy of the sketch for a joining client, sent as a series of bounded messages
+ * instead of one giant line:
+ *      "snapshot begin <number of shapes>"
+ *      "snapshot <ID> <shapeString>,<ID> <shapeString>,..."     (as many of these as needed)
+ *      "snapshot end"
+ * Each chunk is only put together as it is sent, so at most one chunk is ever in memory at once
+ * (Sketch's strings are shared with its cache; WallSketch makes each shape's string from a copy of its rows
+ * only as the chunk it is in is put together, off the sequencer). The shapes are gone through once.
+ */
+public class Snapshot implements Iterable<String> {
+	public static final String BEGIN = "snapshot begin", END = "snapshot end", CHUNK = "snapshot ";
+	public static final int CHUNK_SHAPES = 256;			// at most this many shapes per chunk
+	public static final int CHUNK_CHARS = 32 * 1024;	// and (roughly) at most this many characters
+
+	private int size;					// how many shapes
+	private Iterable<String> shapes;	// each shape as "<ID> <shapeString>", top-most first
+
+	public Snapshot(ArrayList<String> shapes) {
+		this(shapes.size(), shapes);
+	}
+
+	/**
+	 * @param shapes exactly size shapes, made as they are asked for
+	 */
+	public Snapshot(int size, Iterable<String> shapes) {
+		this.size = size;
+		this.shapes = shapes;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Each shape as "<ID> <shapeString>", top-most first
+	 */
+	public Iterable<String> shapes() {
+		return shapes;
+	}
+
+	/**
+	 * Whether the message is part of a snapshot (begin, chunk or end)
+	 */
+	public static boolean isSnapshotMessage(String msg) {
+		return msg.startsWith(CHUNK);
+	}
+
+	/**
+	 * The messages to send, in order: begin, the chunks, end
+	 */
+	@Override
+	public Iterator<String> iterator() {
+		return new Iterator<String>() {
+			private int next = -1;		// index of the next shape to send; -1 before begin, past the end after end
+			private Iterator<String> pieces = shapes.iterator();
+
+			public boolean hasNext() {
+				return next <= size;
+			}
+
+			public String next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				if (next == -1) {
+					next = 0;
+					return BEGIN + " " + size;
+				}
+				if (next == size) {
+					next++;
+					return END;
+				}
+
+				// fill a chunk with as many shapes as fit
+				StringBuilder chunk = new StringBuilder(CHUNK);
+				int count = 0;
+				while (next < size && count < CHUNK_SHAPES && chunk.length() < CHUNK_CHARS) {
+					if (count > 0) {
+						chunk.append(',');
+					}
+					chunk.append(pieces.next());
+					next++;
+					count++;
+				}
+				return chunk.toString();
+			}
+		};
+	}
+}
@@ -0,0 +1,118 @@
+import java.util.*;
+
+/**
+ * A uniform grid over the canvas, remembering which shapes' bounds touch each cell,
+ * so finding the shapes under a point only looks at the shapes near it
+ *
+ * Shapes covering too many cells are kept in a separate list instead, and checked on every query.
+ * Not thread-safe; the sketch guards it with its own lock.
+ */
+public class SpatialGrid {
+	public static final int CELL_SIZE = 64;			// width and height of a cell, in pixels
+	public static final int MAX_CELLS = 256;		// shapes covering more cells than this go in the large list
+
+	private HashMap<Long, ArrayList<Integer>> cells;			// the IDs of the shapes touching each cell
+	private HashMap<Integer, java.awt.Rectangle> placed;		// the bounds each shape was put in with
+	private HashSet<Integer> large;								// shapes too big to put in cells
+
+	public SpatialGrid() {
+		cells = new HashMap<>();
+		placed = new HashMap<>();
+		large = new HashSet<>();
+	}
+
+	/**
+	 * Puts the shape in every cell its bounds touch
+	 */
+	public void insert(int id, java.awt.Rectangle bounds) {
+		placed.put(id, bounds);
+		int cx1 = Math.floorDiv(bounds.x, CELL_SIZE), cx2 = Math.floorDiv(bounds.x + bounds.width - 1, CELL_SIZE);
+		int cy1 = Math.floorDiv(bounds.y, CELL_SIZE), cy2 = Math.floorDiv(bounds.y + bounds.height - 1, CELL_SIZE);
+
+		if ((long) (cx2 - cx1 + 1) * (cy2 - cy1 + 1) > MAX_CELLS) {
+			large.add(id);
+			return;
+		}
+		for (int cx = cx1; cx <= cx2; cx++) {
+			for (int cy = cy1; cy <= cy2; cy++) {
+				cells.computeIfAbsent(key(cx, cy), k -> new ArrayList<>(4)).add(id);
+			}
+		}
+	}
+
+	/**
+	 * Takes the shape out of the grid
+	 */
+	public void remove(int id) {
+		java.awt.Rectangle bounds = placed.remove(id);
+		if (bounds == null) {
+			return;
+		}
+		if (large.remove(id)) {
+			return;
+		}
+
+		int cx1 = Math.floorDiv(bounds.x, CELL_SIZE), cx2 = Math.floorDiv(bounds.x + bounds.width - 1, CELL_SIZE);
+		int cy1 = Math.floorDiv(bounds.y, CELL_SIZE), cy2 = Math.floorDiv(bounds.y + bounds.height - 1, CELL_SIZE);
+		for (int cx = cx1; cx <= cx2; cx++) {
+			for (int cy = cy1; cy <= cy2; cy++) {
+				Long key = key(cx, cy);
+				ArrayList<Integer> ids = cells.get(key);
+				if (ids != null) {
+					ids.remove(Integer.valueOf(id));
+					if (ids.isEmpty()) {
+						cells.remove(key);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves the shape to its new bounds
+	 */
+	public void update(int id, java.awt.Rectangle bounds) {
+		remove(id);
+		insert(id, bounds);
+	}
+
+	/**
+	 * Removes every shape
+	 */
+	public void clear() {
+		cells.clear();
+		placed.clear();
+		large.clear();
+	}
+
+	/**
+	 * The shapes whose bounds contain the point, top-most (highest ID) first
+	 * These are only candidates: the point may still be outside the shape itself
+	 */
+	public ArrayList<Integer> query(int x, int y) {
+		ArrayList<Integer> candidates = new ArrayList<>();
+		ArrayList<Integer> ids = cells.get(key(Math.floorDiv(x, CELL_SIZE), Math.floorDiv(y, CELL_SIZE)));
+		if (ids != null) {
+			for (int id : ids) {
+				if (placed.get(id).contains(x, y)) {
+					candidates.add(id);
+				}
+			}
+		}
+		for (int id : large) {
+			if (placed.get(id).contains(x, y)) {
+				candidates.add(id);
+			}
+		}
+
+		candidates.sort(Collections.reverseOrder());
+		return candidates;
+	}
+
+	/**
+	 * Packs a cell's coordinates into one key
+	 */
+	private static long key(int cx, int cy) {
+		return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+	}
+}
@@ -7,8 +7,6 @@ import java.awt.*;
  * An Triangle Shape
  */
 public class Triangle implements Shape {
-    private Polygon triangle;           // the shape to be drawn
-
     private int[] y = new int[3];       // an array of all of the x values
     private int[] x = new int[3];       // an array of all of the y values
 
@@ -64,15 +62,64 @@ public class Triangle implements Shape {
 
     /**
      * Check if a point is contained by the Triangle
+     * The same crossing test (and so the same answer on the edges) as java.awt.Polygon.contains,
+     * worked out straight from the corners instead of making a Polygon and a Point each time
      */
     @Override
-    public boolean contains(int x, int y) {
-
-        // create a polygon with this values
-        triangle = new Polygon(this.x, this.y, 3);
+    public boolean contains(int px, int py) {
+        // outside the box around the corners (which, like Polygon's, leaves out its right and bottom edges)
+        int minX = Math.min(x[0], Math.min(x[1], x[2])), maxX = Math.max(x[0], Math.max(x[1], x[2]));
+        int minY = Math.min(y[0], Math.min(y[1], y[2])), maxY = Math.max(y[0], Math.max(y[1], y[2]));
+        if (px < minX || py < minY || px >= maxX || py >= maxY) {
+            return false;
+        }
+
+        // count the edges crossed going left from the point
+        int hits = 0;
+        int lastx = x[2], lasty = y[2];
+        for (int i = 0; i < 3; i++) {
+            int curx = x[i], cury = y[i];
+            if (crosses(px, py, lastx, lasty, curx, cury)) {
+                hits++;
+            }
+            lastx = curx;
+            lasty = cury;
+        }
+        return (hits & 1) != 0;
+    }
 
-        // return if the shape contains these values
-        return triangle.contains(new Point(x, y));
+    /**
+     * Whether the ray going left from (px,py) crosses the edge from (lastx,lasty) to (curx,cury)
+     */
+    private static boolean crosses(int px, int py, int lastx, int lasty, int curx, int cury) {
+        if (cury == lasty) {
+            return false;
+        }
+
+        int leftx;
+        if (curx < lastx) {
+            if (px >= lastx) return false;
+            leftx = curx;
+        }
+        else {
+            if (px >= curx) return false;
+            leftx = lastx;
+        }
+
+        double test1, test2;
+        if (cury < lasty) {
+            if (py < cury || py >= lasty) return false;
+            if (px < leftx) return true;
+            test1 = px - curx;
+            test2 = py - cury;
+        }
+        else {
+            if (py < lasty || py >= cury) return false;
+            if (px < leftx) return true;
+            test1 = px - lastx;
+            test2 = py - lasty;
+        }
+        return test1 < (test2 / (lasty - cury) * (lastx - curx));
     }
 
     /**
@@ -105,8 +152,29 @@ public class Triangle implements Shape {
     @Override
     public void draw(Graphics g) {
         g.setColor(color);
-        triangle = new Polygon(this.x, this.y, 3);
-        g.fillPolygon(triangle);
+        g.fillPolygon(x, y, 3);
+    }
+
+    /**
+     * The box around the three corners
+     */
+    @Override
+    public java.awt.Rectangle getBounds() {
+        int minX = Math.min(x[0], Math.min(x[1], x[2])), maxX = Math.max(x[0], Math.max(x[1], x[2]));
+        int minY = Math.min(y[0], Math.min(y[1], y[2])), maxY = Math.max(y[0], Math.max(y[1], y[2]));
+        return new java.awt.Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    /**
+     * Copy the corners and height as they are
+     */
+    @Override
+    public Shape copy() {
+        Triangle copy = new Triangle(x[0], y[0], color);
+        copy.x = x.clone();
+        copy.y = y.clone();
+        copy.h = h;
+        return copy;
     }
 
     /**
@@ -0,0 +1,1176 @@
+import java.awt.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A sketch for very large ("wall") canvases, holding its shapes outside the Java heap
+ *
+ * Instead of one object per shape (plus its Color and Points), every shape is a row across a set of
+ * direct buffers, one buffer per field: its type, color, four numbers of geometry and its bounds.
+ * Polyline joints all go in one shared arena, each polyline a run of it. Row i is the shape with
+ * ID base + i, as in IdTable, so the rows are in drawing order. A Shape object is only made for
+ * a shape when it has to be drawn or hit-tested, and dropped straight after.
+ *
+ * A coarse grid of tiles over the canvas lists the IDs of the shapes whose bounds touch each tile
+ * (as plain int arrays, not an object per shape), so hit-testing and drawing a region only look at
+ * the shapes near it. Shapes over too many tiles are listed apart, and always looked at.
+ *
+ * The rows never span more than MAX_SPAN IDs. Shapes too far below them (an old shape that outlived
+ * millions of newer ones) are kept in a WallSketch of their own, below; when an ID comes too far above
+ * them, the rows move up, handing the shapes they leave behind to that one. As a row costs 45 bytes
+ * whether there is a shape in it or not, "too far" also means columns that would be mostly empty
+ * (spanning more than SPARSE_FACTOR rows for each shape, past SPARSE_SPAN). The one below is sparse:
+ * its rows are just its shapes, in ID order, each with its ID in a column of its own, and a shape's row
+ * is found by binary search; so the shapes left far behind take a row each, however far apart they are.
+ *
+ * Takes the same messages as Sketch and hands out the same strings (see SketchStore);
+ * the server holds its world in one when started with "wall".
+ */
+public class WallSketch implements SketchStore {
+	public static final int MAX_SPAN = IdTable.MAX_SPAN;	// the most IDs apart the lowest and highest row may be
+	public static final int SPARSE_SPAN = 1 << 16;			// rows may span this many IDs however few shapes there are
+	public static final int SPARSE_FACTOR = 8;				// and past that, at most this many rows for each shape
+	public static final int TILE_SIZE = 64;					// width and height of a tile, in pixels
+	public static final int MAX_TILES = 64;					// shapes over more tiles than this are listed apart
+	public static final int MAX_CLIP_TILES = 1024;			// a clip over more tiles than this is drawn by going down every row instead
+	public static final int DRAW_CHUNK = 4096;				// how many shapes draw copies out each time it takes the lock
+
+	private final ReentrantLock lock = new ReentrantLock();		// guards everything below
+	private final OpParser parser = new OpParser();				// reads incoming messages (only from the thread applying them)
+
+	// The columns, one row per ID; a type of OpParser.UNKNOWN (0) is an empty row
+	private ByteBuffer type;
+	private IntBuffer rgb;
+	private IntBuffer a, b, c, d;			// the geometry: two corners, or x1 x2 y h for a triangle, or (polylines) the joints' start in the arena and how many
+	private IntBuffer minX, minY, maxX, maxY;	// the bounds, as Shape.getBounds gives them (inclusive)
+	private IntBuffer dx, dy;				// polylines only: how far they have moved since their joints were written (see Polyline)
+
+	private IntBuffer arena;				// the joints of every polyline, x then y
+	private int arenaUsed;					// how much of the arena is written
+	private int arenaGarbage;				// how much of that belongs to deleted polylines
+
+	private final boolean sparse;			// whether the rows are kept in ID order with their IDs in ids, instead of row i being ID base + i
+	private IntBuffer ids;					// sparse only: the ID of each row (an emptied row keeps its ID until the rows are packed)
+
+	private int capacity;					// how many rows the columns have room for
+	private int base;						// the ID of row 0 (unless sparse)
+	private int lo, hi;						// rows before lo and from hi on are all empty
+	private int size;						// how many rows are not empty
+	private WallSketch below;				// the shapes with IDs too far below the rows to have one (all below base), or null if none; sparse
+
+	private final HashMap<Long, Ints> tiles = new HashMap<>();	// the IDs of the shapes whose bounds touch each tile
+	private final Ints large = new Ints();						// and of those over too many tiles to list in each
+
+	/**
+	 * A growable list of ints, so lists of IDs don't need an Integer for each
+	 */
+	private static class Ints {
+		int[] values = new int[4];
+		int count;
+
+		void add(int value) {
+			if (count == values.length) {
+				values = Arrays.copyOf(values, count * 2);
+			}
+			values[count++] = value;
+		}
+
+		/**
+		 * Takes the value out (the last one takes its place)
+		 */
+		void remove(int value) {
+			for (int i = 0; i < count; i++) {
+				if (values[i] == value) {
+					values[i] = values[--count];
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Puts them in order, dropping repeats
+		 */
+		void sortUnique() {
+			Arrays.sort(values, 0, count);
+			int kept = 0;
+			for (int i = 0; i < count; i++) {
+				if (kept == 0 || values[i] != values[kept - 1]) {
+					values[kept++] = values[i];
+				}
+			}
+			count = kept;
+		}
+	}
+
+	public WallSketch() {
+		this(false);
+	}
+
+	private WallSketch(boolean sparse) {
+		this.sparse = sparse;
+		allocate(1024);
+		arena = direct(1024);
+	}
+
+	/**
+	 * A copy of the other's rows from lo to hi, and its arena, moved to the start of the columns (see frozen)
+	 */
+	private WallSketch(WallSketch from) {
+		sparse = from.sparse;
+		int rows = from.hi - from.lo;
+		allocate(Math.max(1, rows));
+		type.put(0, from.type, from.lo, rows);
+		IntBuffer[] old = from.columns(), now = columns();
+		for (int k = 0; k < now.length; k++) {
+			now[k].put(0, old[k], from.lo, rows);
+		}
+		arena = direct(Math.max(1, from.arenaUsed));
+		arena.put(0, from.arena, 0, from.arenaUsed);
+		arenaUsed = from.arenaUsed;
+		arenaGarbage = from.arenaGarbage;
+
+		base = from.base + from.lo;
+		lo = 0;
+		hi = rows;
+		size = from.size;
+		below = from.below == null ? null : from.below.frozen();
+	}
+
+	/**
+	 * How many shapes there are
+	 */
+	public int size() {
+		lock.lock();
+		try {
+			return below == null ? size : size + below.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * How many bytes the columns and arena take (outside the heap)
+	 */
+	public long offHeapBytes() {
+		lock.lock();
+		try {
+			long bytes = (long) capacity * (1 + 4 * columns().length) + (long) arena.capacity() * 4;
+			return below == null ? bytes : bytes + below.offHeapBytes();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Add a shape, from the numbers the parser has just read
+	 * @return false (leaving the sketch alone) if they don't make a shape
+	 */
+	private boolean addShape(int id, int shapeType, int count, int color) {
+		Shape shape = parser.buildShape(shapeType, count, color);
+		if (shape == null) {
+			return false;
+		}
+
+		// the row as copyRow would copy it out
+		int[] data;
+		if (shapeType == OpParser.POLYLINE) {
+			data = new int[5 + count];
+			data[2] = count / 2;
+			for (int i = 0; i < count; i++) {
+				data[5 + i] = parser.value(i);
+			}
+		}
+		else {
+			// an ellipse has its corners put in order, like Ellipse does
+			int x1 = parser.value(0), y1 = parser.value(1), x2 = parser.value(2), y2 = parser.value(3);
+			if (shapeType == OpParser.ELLIPSE) {
+				data = new int[] {0, 0, Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2)};
+			}
+			else {
+				data = new int[] {0, 0, x1, y1, x2, y2};
+			}
+		}
+		data[0] = shapeType;
+		data[1] = color;
+		putRow(id, data, shape.getBounds());
+		return true;
+	}
+
+	/**
+	 * Sets the row for the ID to one copied out by copyRow, with the bounds given, making room for it if needed
+	 */
+	private void putRow(int id, int[] data, java.awt.Rectangle bounds) {
+		lock.lock();
+		try {
+			int row = sparse ? openRow(id) : makeRoom(id);
+			if (row == -1) {
+				below.putRow(id, data, bounds);
+				return;
+			}
+			if (type.get(row) == 0) {
+				size++;
+			}
+			else {
+				index(row, false);
+			}
+			clearRow(row);
+
+			int shapeType = data[0];
+			type.put(row, (byte) shapeType);
+			rgb.put(row, data[1]);
+			if (shapeType == OpParser.POLYLINE) {
+				// the joints go on the end of the arena
+				int joints = data[2];
+				a.put(row, appendJoints(data, 5, 2 * joints));
+				b.put(row, joints);
+				c.put(row, 0);
+				d.put(row, 0);
+				dx.put(row, data[3]);
+				dy.put(row, data[4]);
+			}
+			else {
+				a.put(row, data[2]); b.put(row, data[3]);
+				c.put(row, data[4]); d.put(row, data[5]);
+				dx.put(row, 0);
+				dy.put(row, 0);
+			}
+
+			minX.put(row, bounds.x);
+			minY.put(row, bounds.y);
+			maxX.put(row, bounds.x + bounds.width - 1);
+			maxY.put(row, bounds.y + bounds.height - 1);
+			index(row, true);
+
+			lo = Math.min(lo, row);
+			hi = Math.max(hi, row + 1);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the shape with the ID, if there is one
+	 */
+	public void removeShape(int id) {
+		lock.lock();
+		try {
+			int row = rowOf(id);
+			if (row == -1) {
+				if (below != null && id < base) {
+					below.removeShape(id);
+					if (below.size() == 0) {
+						below = null;
+					}
+				}
+				return;
+			}
+			index(row, false);
+			clearRow(row);
+			size--;
+
+			// drop empty rows from the ends
+			while (lo < hi && type.get(lo) == 0) {
+				lo++;
+			}
+			while (hi > lo && type.get(hi - 1) == 0) {
+				hi--;
+			}
+
+			// sparse: pack the rows once they are mostly emptied ones
+			if (sparse && hi - lo > 2 * size + 1024) {
+				pack();
+			}
+			// put the arena back together once it is mostly deleted joints
+			if (arenaGarbage > 1024 && arenaGarbage * 2 > arenaUsed) {
+				compactArena();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Recolors the shape with the ID, if there is one
+	 */
+	public void setColor(int id, int color) {
+		lock.lock();
+		try {
+			int row = rowOf(id);
+			if (row != -1) {
+				rgb.put(row, color);
+			}
+			else if (below != null && id < base) {
+				below.setColor(id, color);
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Moves the shape with the ID, if there is one
+	 */
+	public void moveShape(int id, int mx, int my) {
+		lock.lock();
+		try {
+			int row = rowOf(id);
+			if (row == -1) {
+				if (below != null && id < base) {
+					below.moveShape(id, mx, my);
+				}
+				return;
+			}
+
+			// a move within the same tiles leaves the index alone
+			boolean retile = !(sameTile(minX.get(row), mx) && sameTile(maxX.get(row), mx)
+					&& sameTile(minY.get(row), my) && sameTile(maxY.get(row), my));
+			if (retile) {
+				index(row, false);
+			}
+
+			int shapeType = type.get(row);
+			if (shapeType == OpParser.POLYLINE) {
+				// just remember how far, like Polyline
+				dx.put(row, dx.get(row) + mx);
+				dy.put(row, dy.get(row) + my);
+			}
+			else if (shapeType == OpParser.TRIANGLE) {
+				a.put(row, a.get(row) + mx); b.put(row, b.get(row) + mx);
+				c.put(row, c.get(row) + my);
+			}
+			else {
+				a.put(row, a.get(row) + mx); b.put(row, b.get(row) + my);
+				c.put(row, c.get(row) + mx); d.put(row, d.get(row) + my);
+			}
+
+			minX.put(row, minX.get(row) + mx); maxX.put(row, maxX.get(row) + mx);
+			minY.put(row, minY.get(row) + my); maxY.put(row, maxY.get(row) + my);
+			if (retile) {
+				index(row, true);
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Find the top-most shape containing the point
+	 * Only the shapes listed in the point's tile (and the large ones) whose bounds hold the point are made into shapes, top-most first
+	 * @return the shape's ID, or -1 if there is none
+	 */
+	public int shapeAt(int x, int y) {
+		lock.lock();
+		try {
+			Ints candidates = new Ints();
+			Ints here = tiles.get(key(Math.floorDiv(x, TILE_SIZE), Math.floorDiv(y, TILE_SIZE)));
+			if (here != null) {
+				for (int i = 0; i < here.count; i++) {
+					if (holds(rowOf(here.values[i]), x, y)) {
+						candidates.add(here.values[i]);
+					}
+				}
+			}
+			for (int i = 0; i < large.count; i++) {
+				if (holds(rowOf(large.values[i]), x, y)) {
+					candidates.add(large.values[i]);
+				}
+			}
+
+			candidates.sortUnique();
+			for (int i = candidates.count - 1; i >= 0; i--) {
+				int id = candidates.values[i];
+				if (view(rowOf(id)).contains(x, y)) {
+					return id;
+				}
+			}
+			// everything here is over what is below
+			return below != null ? below.shapeAt(x, y) : -1;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The shape with the ID, made fresh from its row (changing it doesn't change the sketch)
+	 * @return the shape, or null if there is none
+	 */
+	public Shape getShape(int id) {
+		lock.lock();
+		try {
+			int row = rowOf(id);
+			if (row == -1) {
+				return (below != null && id < base) ? below.getShape(id) : null;
+			}
+			return view(row);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Draw the shapes that fall in the graphics' clip, bottom-most first
+	 * The lock is only held to find them and copy their rows out, a chunk at a time; the shapes are made
+	 * and painted without it, so updates go on meanwhile (a shape changed mid-draw is drawn either way, once)
+	 */
+	public void draw(Graphics g) {
+		java.awt.Rectangle clip = g.getClipBounds();
+		if (clip != null && clip.isEmpty()) {
+			return;
+		}
+
+		// the shapes far below go under the rest
+		WallSketch under;
+		lock.lock();
+		try {
+			under = below;
+		}
+		finally {
+			lock.unlock();
+		}
+		if (under != null) {
+			under.draw(g);
+		}
+
+		// a small clip: just the shapes listed in the tiles it covers
+		if (clip != null && tilesIn(clip) <= MAX_CLIP_TILES) {
+			Ints ids;
+			lock.lock();
+			try {
+				ids = listed(clip);
+			}
+			finally {
+				lock.unlock();
+			}
+			for (int from = 0; from < ids.count; from += DRAW_CHUNK) {
+				int[] data;
+				lock.lock();
+				try {
+					data = copyRows(ids, from, Math.min(ids.count, from + DRAW_CHUNK));
+				}
+				finally {
+					lock.unlock();
+				}
+				paint(g, data);
+			}
+			return;
+		}
+
+		// most of the canvas: go down the rows, which are in order already, picking up where the last chunk left off
+		long next = Integer.MIN_VALUE;	// the ID to go on from
+		boolean done = false;
+		while (!done) {
+			int[] data;
+			lock.lock();
+			try {
+				Ints ids = new Ints();
+				int row = search(next);
+				int stop = (int) Math.min(hi, (long) row + DRAW_CHUNK * 16L);
+				for (; row < stop && ids.count < DRAW_CHUNK; row++) {
+					if (type.get(row) != 0 && (clip == null || meets(row, clip))) {
+						ids.add(idOf(row));
+					}
+				}
+				done = row >= hi;
+				if (!done) {
+					next = idOf(row);
+				}
+				data = copyRows(ids, 0, ids.count);
+			}
+			finally {
+				lock.unlock();
+			}
+			paint(g, data);
+		}
+	}
+
+	/**
+	 * Makes shapes of the rows copied out and draws them (without the lock)
+	 */
+	private static void paint(Graphics g, int[] data) {
+		for (int at = 0; at < data.length; at += copyLength(data, at)) {
+			build(data, at).draw(g);
+		}
+	}
+
+	/**
+	 * How many tiles the rectangle covers
+	 */
+	private static long tilesIn(java.awt.Rectangle clip) {
+		long across = Math.floorDiv(clip.x + clip.width - 1, TILE_SIZE) - Math.floorDiv(clip.x, TILE_SIZE) + 1;
+		long down = Math.floorDiv(clip.y + clip.height - 1, TILE_SIZE) - Math.floorDiv(clip.y, TILE_SIZE) + 1;
+		return across * down;
+	}
+
+	/**
+	 * The IDs of the shapes listed in the tiles the clip covers whose bounds meet it, bottom-most first
+	 * (a shape over several tiles is in each, but only once here) (call with the lock held)
+	 */
+	private Ints listed(java.awt.Rectangle clip) {
+		Ints ids = new Ints();
+		int tx1 = Math.floorDiv(clip.x, TILE_SIZE), tx2 = Math.floorDiv(clip.x + clip.width - 1, TILE_SIZE);
+		int ty1 = Math.floorDiv(clip.y, TILE_SIZE), ty2 = Math.floorDiv(clip.y + clip.height - 1, TILE_SIZE);
+		for (int tx = tx1; tx <= tx2; tx++) {
+			for (int ty = ty1; ty <= ty2; ty++) {
+				Ints here = tiles.get(key(tx, ty));
+				if (here == null) {
+					continue;
+				}
+				for (int i = 0; i < here.count; i++) {
+					if (meets(rowOf(here.values[i]), clip)) {
+						ids.add(here.values[i]);
+					}
+				}
+			}
+		}
+		for (int i = 0; i < large.count; i++) {
+			if (meets(rowOf(large.values[i]), clip)) {
+				ids.add(large.values[i]);
+			}
+		}
+		ids.sortUnique();
+		return ids;
+	}
+
+	/**
+	 * String the sketch, top-most first, as Sketch does
+	 */
+	public String toString() {
+		lock.lock();
+		try {
+			StringBuilder result = new StringBuilder();
+			for (int row = hi - 1; row >= lo; row--) {
+				if (type.get(row) == 0) {
+					continue;
+				}
+				if (result.length() > 0) {
+					result.append(',');
+				}
+				result.append(idOf(row)).append(' ').append(view(row).toString());
+			}
+			if (below != null) {
+				if (result.length() > 0) {
+					result.append(',');
+				}
+				result.append(below.toString());
+			}
+			return result.toString();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * A point-in-time copy of the sketch, top-most first, to stream to a joining client in chunks (see Sketch.snapshot)
+	 * Only the columns and arena are copied with the lock held, in bulk; each shape's string is made from
+	 * that copy as the snapshot's chunks are put together, by whoever sends or writes it
+	 */
+	public Snapshot snapshot() {
+		WallSketch copy = frozen();
+		return new Snapshot(copy.size(), copy::pieces);
+	}
+
+	/**
+	 * A copy of the rows (and those below) as they are now, that no one changes: just the columns and arena, no tiles
+	 */
+	private WallSketch frozen() {
+		lock.lock();
+		try {
+			return new WallSketch(this);
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Each shape as "<ID> <shapeString>", top-most first (those below last), made only as each is asked for
+	 * (only for a copy made by frozen, which needs no lock)
+	 */
+	private Iterator<String> pieces() {
+		return new Iterator<String>() {
+			private int row = hi - 1;			// the next row to look at, going down
+			private Iterator<String> under;		// below's, once the rows here are done
+
+			public boolean hasNext() {
+				while (row >= lo && type.get(row) == 0) {
+					row--;
+				}
+				if (row >= lo) {
+					return true;
+				}
+				if (under == null && below != null) {
+					under = below.pieces();
+				}
+				return under != null && under.hasNext();
+			}
+
+			public String next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				if (row >= lo) {
+					String piece = idOf(row) + " " + view(row).toString();
+					row--;
+					return piece;
+				}
+				return under.next();
+			}
+		};
+	}
+
+	/**
+	 * Update a sketch based entirely from a string
+	 * proper format to parse "<ID> <shapeString>, <ID> <shapeString>, ..."
+	 * @return false if any of the shapes were malformed (those are skipped)
+	 */
+	public boolean parseSketch(String line) {
+		lock.lock();
+		try {
+			boolean ok = true;
+			int start = 0;
+			while (start < line.length()) {
+				int end = line.indexOf(',', start);
+				if (end == -1) {
+					end = line.length();
+				}
+
+				// the properties of the shape: ID, type, dimensions, color
+				parser.reset(line, start, end);
+				int id = parser.nextInt();
+				int shapeType = parser.nextShapeType();
+				int count = parser.readInts();
+
+				// the last number is the color
+				if (parser.hasError() || count < 1 || !addShape(id, shapeType, count - 1, parser.value(count - 1))) {
+					ok = false;
+				}
+				start = end + 1;
+			}
+			return ok;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Handles a message, in the same format as Sketch.handleMessage
+	 * @return false (leaving the sketch alone) if the message was malformed
+	 */
+	public boolean handleMessage(String line) {
+		lock.lock();
+		try {
+			parser.reset(line);
+			int op = parser.nextOp();
+
+			if (op == OpParser.ADD) {
+				int shapeType = parser.nextShapeType();
+				int count = parser.readInts();
+				if (parser.hasError() || count < 2) {
+					return false;
+				}
+
+				// the last two numbers are the color and the ID of the shape
+				return addShape(parser.value(count - 1), shapeType, count - 2, parser.value(count - 2));
+			}
+			else if (op == OpParser.DELETE) {
+				int id = parser.nextInt();
+				if (!parser.finished()) {
+					return false;
+				}
+				removeShape(id);
+			}
+			else if (op == OpParser.MOVE) {
+				int id = parser.nextInt();
+				int mx = parser.nextInt();
+				int my = parser.nextInt();
+				if (!parser.finished()) {
+					return false;
+				}
+				moveShape(id, mx, my);
+			}
+			else if (op == OpParser.COLOR) {
+				int id = parser.nextInt();
+				int color = parser.nextInt();
+				if (!parser.finished()) {
+					return false;
+				}
+				setColor(id, color);
+			}
+			else {
+				return false;
+			}
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Makes a Shape out of a row (call with the lock held)
+	 */
+	private Shape view(int row) {
+		int[] data = new int[type.get(row) == OpParser.POLYLINE ? 5 + 2 * b.get(row) : 6];
+		copyRow(row, data, 0);
+		return build(data, 0);
+	}
+
+	/**
+	 * Copies the rows of the shapes with the IDs (those from index from up to to) out of the columns,
+	 * skipping any that have gone since, so they can be made into shapes without the lock (call with the lock held)
+	 */
+	private int[] copyRows(Ints ids, int from, int to) {
+		int length = 0;
+		for (int i = from; i < to; i++) {
+			int row = rowOf(ids.values[i]);
+			if (row != -1) {
+				length += type.get(row) == OpParser.POLYLINE ? 5 + 2 * b.get(row) : 6;
+			}
+		}
+		int[] data = new int[length];
+		int at = 0;
+		for (int i = from; i < to; i++) {
+			int row = rowOf(ids.values[i]);
+			if (row != -1) {
+				at = copyRow(row, data, at);
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Copies one row out at at: its type, color and geometry, or for a polyline how many joints,
+	 * how far it has moved, and the joints themselves
+	 * @return where the next one goes
+	 */
+	private int copyRow(int row, int[] data, int at) {
+		int shapeType = type.get(row);
+		data[at++] = shapeType;
+		data[at++] = rgb.get(row);
+		if (shapeType == OpParser.POLYLINE) {
+			int joints = b.get(row);
+			data[at++] = joints;
+			data[at++] = dx.get(row);
+			data[at++] = dy.get(row);
+			arena.get(a.get(row), data, at, 2 * joints);
+			return at + 2 * joints;
+		}
+		data[at++] = a.get(row);
+		data[at++] = b.get(row);
+		data[at++] = c.get(row);
+		data[at++] = d.get(row);
+		return at;
+	}
+
+	/**
+	 * How many ints the row copied out at at takes
+	 */
+	private static int copyLength(int[] data, int at) {
+		return data[at] == OpParser.POLYLINE ? 5 + 2 * data[at + 2] : 6;
+	}
+
+	/**
+	 * Makes a Shape out of a row copied out at at (no lock needed)
+	 */
+	private static Shape build(int[] data, int at) {
+		int shapeType = data[at];
+		Color color = OpParser.color(data[at + 1]);
+		if (shapeType == OpParser.POLYLINE) {
+			Polyline polyline = new Polyline();
+			int joints = data[at + 2];
+			for (int i = 0, j = at + 5; i < joints; i++, j += 2) {
+				polyline.addPoints(data[j], data[j + 1]);
+			}
+			polyline.moveBy(data[at + 3], data[at + 4]);
+			polyline.setColor(color);
+			return polyline;
+		}
+		int a = data[at + 2], b = data[at + 3], c = data[at + 4], d = data[at + 5];
+		if (shapeType == OpParser.ELLIPSE) {
+			return new Ellipse(a, b, c, d, color);
+		}
+		else if (shapeType == OpParser.RECTANGLE) {
+			return new Rectangle(a, b, c, d, color);
+		}
+		else if (shapeType == OpParser.SEGMENT) {
+			return new Segment(a, b, c, d, color);
+		}
+		else {
+			return new Triangle(a, b, c, d, color);
+		}
+	}
+
+	/**
+	 * Puts the shape in the row in (or takes it out of) every tile its bounds touch, or the large list (call with the lock held)
+	 */
+	private void index(int row, boolean add) {
+		int id = idOf(row);
+		int tx1 = Math.floorDiv(minX.get(row), TILE_SIZE), tx2 = Math.floorDiv(maxX.get(row), TILE_SIZE);
+		int ty1 = Math.floorDiv(minY.get(row), TILE_SIZE), ty2 = Math.floorDiv(maxY.get(row), TILE_SIZE);
+
+		if ((long) (tx2 - tx1 + 1) * (ty2 - ty1 + 1) > MAX_TILES) {
+			if (add) {
+				large.add(id);
+			}
+			else {
+				large.remove(id);
+			}
+			return;
+		}
+		for (int tx = tx1; tx <= tx2; tx++) {
+			for (int ty = ty1; ty <= ty2; ty++) {
+				long key = key(tx, ty);
+				if (add) {
+					tiles.computeIfAbsent(key, k -> new Ints()).add(id);
+				}
+				else {
+					Ints here = tiles.get(key);
+					if (here != null) {
+						here.remove(id);
+						if (here.count == 0) {
+							tiles.remove(key);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Whether moving by delta leaves the coordinate in the same tile
+	 */
+	private static boolean sameTile(int value, int delta) {
+		return Math.floorDiv(value, TILE_SIZE) == Math.floorDiv(value + delta, TILE_SIZE);
+	}
+
+	/**
+	 * Whether the row's bounds hold the point (call with the lock held)
+	 */
+	private boolean holds(int row, int x, int y) {
+		return x >= minX.get(row) && x <= maxX.get(row) && y >= minY.get(row) && y <= maxY.get(row);
+	}
+
+	/**
+	 * Whether the row's bounds meet the rectangle (call with the lock held)
+	 */
+	private boolean meets(int row, java.awt.Rectangle clip) {
+		return maxX.get(row) >= clip.x && minX.get(row) < clip.x + clip.width
+				&& maxY.get(row) >= clip.y && minY.get(row) < clip.y + clip.height;
+	}
+
+	/**
+	 * Packs a tile's coordinates into one key
+	 */
+	private static long key(int tx, int ty) {
+		return ((long) tx << 32) | (ty & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * The row of the shape with the ID, or -1 if there is none (call with the lock held)
+	 */
+	private int rowOf(int id) {
+		int row = search(id);
+		if (row >= hi || idOf(row) != id || type.get(row) == 0) {
+			return -1;
+		}
+		return row;
+	}
+
+	/**
+	 * The ID of the shape in the row (call with the lock held)
+	 */
+	private int idOf(int row) {
+		return sparse ? ids.get(row) : base + row;
+	}
+
+	/**
+	 * The first row from lo on whose ID is at least this one, or hi if there is none (call with the lock held)
+	 */
+	private int search(long id) {
+		if (!sparse) {
+			return (int) Math.max(lo, Math.min(hi, id - base));
+		}
+		int low = lo, high = hi;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (ids.get(middle) < id) {
+				low = middle + 1;
+			}
+			else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Empties a row, counting its joints (if any) as garbage
+	 */
+	private void clearRow(int row) {
+		if (type.get(row) == OpParser.POLYLINE) {
+			arenaGarbage += b.get(row) * 2;
+		}
+		type.put(row, (byte) 0);
+	}
+
+	/**
+	 * Makes sure there is a row for the ID, moving everything to bigger columns if needed
+	 * (or, for an ID too far above the rest, moving the rows up first: see moveUp)
+	 * @return the row, or -1 if the ID is too far below the rows for one, and so goes below instead
+	 */
+	private int makeRoom(int id) {
+		if (below != null && id < base) {
+			return -1;
+		}
+		if (size == 0) {
+			// start the rows around it (just from it, if there are shapes below, which all have to stay under base)
+			base = below == null ? id - capacity / 2 : id;
+			lo = id - base;
+			hi = lo;
+		}
+		long row = (long) id - base;
+		if (row >= 0 && row < capacity) {
+			return (int) row;
+		}
+
+		long from = Math.min((long) id, base + lo), to = Math.max((long) id, (long) base + hi - 1);
+		long most = Math.min(MAX_SPAN, Math.max(SPARSE_SPAN, SPARSE_FACTOR * ((long) size + 1)));	// the most the rows may span
+		if (to - from + 1 > most) {
+			if (row < 0) {
+				below = new WallSketch(true);
+				return -1;
+			}
+			// leave room for more IDs to come
+			moveUp((int) (id - most / 2));
+			if (size == 0) {
+				base = id;
+				lo = 0;
+				hi = 0;
+				return 0;
+			}
+			from = base + lo;
+			row = (long) id - base;
+			if (row < capacity) {
+				return (int) row;
+			}
+		}
+
+		// twice the room needed, the spare going on whichever side the new ID is
+		long span = to - from + 1;
+		int newCapacity = (int) Math.min(Math.max(1024, span * 2), MAX_SPAN);
+		int newBase = (int) (row < 0 ? Math.max(Integer.MIN_VALUE, to - newCapacity + 1) : from);
+		int shift = base - newBase;
+
+		ByteBuffer oldType = type;
+		IntBuffer[] old = columns();
+		int oldLo = lo, oldHi = hi;
+		allocate(newCapacity);
+		type.put(oldLo + shift, oldType, oldLo, oldHi - oldLo);
+		IntBuffer[] now = columns();
+		for (int k = 0; k < now.length; k++) {
+			now[k].put(oldLo + shift, old[k], oldLo, oldHi - oldLo);
+		}
+		base = newBase;
+		lo = oldLo + shift;
+		hi = oldHi + shift;
+		return id - base;
+	}
+
+	/**
+	 * Sparse: finds the row for the ID, or makes one where it goes in ID order (taking an emptied row next to
+	 * that spot if there is one, else moving the rows above it up one, packing them into new columns first if full)
+	 * @return the row
+	 */
+	private int openRow(int id) {
+		if (lo == hi) {
+			// start in the middle, with room either side
+			lo = capacity / 2;
+			hi = lo;
+		}
+		int at = search(id);
+		if (at < hi && ids.get(at) == id) {
+			return at;
+		}
+		int row;
+		if (at > lo && type.get(at - 1) == 0) {
+			row = at - 1;
+		}
+		else if (at < hi && type.get(at) == 0) {
+			row = at;
+		}
+		else if (at == hi && hi < capacity) {
+			row = hi;
+		}
+		else if (at == lo && lo > 0) {
+			row = lo - 1;
+		}
+		else if (hi < capacity) {
+			type.put(at + 1, type, at, hi - at);
+			for (IntBuffer column : columns()) {
+				column.put(at + 1, column, at, hi - at);
+			}
+			type.put(at, (byte) 0);
+			hi++;
+			row = at;
+		}
+		else {
+			pack();
+			return openRow(id);
+		}
+		ids.put(row, id);
+		return row;
+	}
+
+	/**
+	 * Sparse: moves the shapes into new columns, with room for as many again, leaving out the emptied rows
+	 * and putting them in the middle, so there is room either side
+	 */
+	private void pack() {
+		ByteBuffer oldType = type;
+		IntBuffer[] old = columns();
+		int oldLo = lo, oldHi = hi;
+		allocate((int) Math.min(Math.max(1024, 2 * ((long) size + 1)), Integer.MAX_VALUE / 4));
+		lo = (capacity - size) / 2;
+		hi = lo;
+		IntBuffer[] now = columns();
+		for (int from = oldLo; from < oldHi; ) {
+			// copy each run of shapes in one go
+			if (oldType.get(from) == 0) {
+				from++;
+				continue;
+			}
+			int to = from + 1;
+			while (to < oldHi && oldType.get(to) != 0) {
+				to++;
+			}
+			type.put(hi, oldType, from, to - from);
+			for (int k = 0; k < now.length; k++) {
+				now[k].put(hi, old[k], from, to - from);
+			}
+			hi += to - from;
+			from = to;
+		}
+	}
+
+	/**
+	 * Hands every shape with an ID under cut to below, so the rows can go on from there
+	 */
+	private void moveUp(int cut) {
+		if (below == null) {
+			below = new WallSketch(true);
+		}
+		for (; lo < hi && base + lo < cut; lo++) {
+			if (type.get(lo) == 0) {
+				continue;
+			}
+			int[] data = new int[type.get(lo) == OpParser.POLYLINE ? 5 + 2 * b.get(lo) : 6];
+			copyRow(lo, data, 0);
+			java.awt.Rectangle bounds = new java.awt.Rectangle(minX.get(lo), minY.get(lo),
+					maxX.get(lo) - minX.get(lo) + 1, maxY.get(lo) - minY.get(lo) + 1);
+			index(lo, false);
+			clearRow(lo);
+			size--;
+			below.putRow(base + lo, data, bounds);
+		}
+		while (lo < hi && type.get(lo) == 0) {
+			lo++;
+		}
+		if (size == 0) {
+			// nothing left in them: start over with small columns
+			allocate(1024);
+			arena = direct(1024);
+			arenaUsed = 0;
+			arenaGarbage = 0;
+		}
+		else if (arenaGarbage > 1024 && arenaGarbage * 2 > arenaUsed) {
+			compactArena();
+		}
+		if (below.size() == 0) {
+			below = null;
+		}
+	}
+
+	/**
+	 * Puts joints (length ints of data, from from on) on the end of the arena
+	 * @return where they start
+	 */
+	private int appendJoints(int[] data, int from, int length) {
+		if (arenaUsed + length > arena.capacity()) {
+			IntBuffer bigger = direct(Math.max(arena.capacity() * 2, arenaUsed + length));
+			bigger.put(0, arena, 0, arenaUsed);
+			arena = bigger;
+		}
+		int start = arenaUsed;
+		arena.put(start, data, from, length);
+		arenaUsed += length;
+		return start;
+	}
+
+	/**
+	 * Copies the joints of the polylines still here into a new arena, leaving out the deleted ones
+	 */
+	private void compactArena() {
+		IntBuffer packed = direct(Math.max(1024, arenaUsed - arenaGarbage));
+		int used = 0;
+		for (int row = lo; row < hi; row++) {
+			if (type.get(row) != OpParser.POLYLINE) {
+				continue;
+			}
+			int start = a.get(row), length = b.get(row) * 2;
+			packed.put(used, arena, start, length);
+			a.put(row, used);
+			used += length;
+		}
+		arena = packed;
+		arenaUsed = used;
+		arenaGarbage = 0;
+	}
+
+	/**
+	 * Makes new, empty columns with room for the rows
+	 */
+	private void allocate(int rows) {
+		capacity = rows;
+		type = ByteBuffer.allocateDirect(rows);
+		rgb = direct(rows);
+		a = direct(rows); b = direct(rows); c = direct(rows); d = direct(rows);
+		minX = direct(rows); minY = direct(rows); maxX = direct(rows); maxY = direct(rows);
+		dx = direct(rows); dy = direct(rows);
+		if (sparse) {
+			ids = direct(rows);
+		}
+	}
+
+	/**
+	 * Every int column, in a fixed order
+	 */
+	private IntBuffer[] columns() {
+		if (sparse) {
+			return new IntBuffer[] {rgb, a, b, c, d, minX, minY, maxX, maxY, dx, dy, ids};
+		}
+		return new IntBuffer[] {rgb, a, b, c, d, minX, minY, maxX, maxY, dx, dy};
+	}
+
+	/**
+	 * A direct buffer of ints, in the machine's own byte order
+	 */
+	private static IntBuffer direct(int ints) {
+		return ByteBuffer.allocateDirect(ints * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+	}
+}
@@ -0,0 +1,239 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks WallSketch against Sketch on random ops, then times what the server does with it at a large size:
+ * shapeAt, and how long ops wait while the whole world is being painted
+ *
+ * The check adds, deletes, moves and recolors at random in both (with a canvas-sized shape now and then), and
+ * compares their strings, snapshots, shapeAt over the canvas, pixels drawn with and without a clip, and a reparse.
+ * Any difference stops it with an exception.
+ *
+ * Run with: java WallSketchBenchmark [shapes]
+ * or, to see what the world costs the heap and the GC (one store per run, so they don't share a heap):
+ *   java -Xmx4g WallSketchBenchmark heap <shapes> sketch|wall
+ */
+public class WallSketchBenchmark {
+	private static final int CANVAS = 5000;			// shapes go anywhere from 0 to this, both ways
+	private static final int CHECK_OPS = 60_000, CHECK_PROBES = 20_000;
+	private static final int TIMED_PROBES = 100_000, PAINTS = 3;
+	private static volatile int sink;				// keeps the JIT from dropping the work
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+		if (args.length > 0 && args[0].equals("heap")) {
+			heap(Integer.parseInt(args[1]), args[2].equals("wall"));
+			return;
+		}
+		int shapes = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+		check(new Random(3));
+		time(shapes, new Random(1));
+	}
+
+	/**
+	 * Runs random ops on both, then compares everything they can be asked
+	 */
+	private static void check(Random random) {
+		Sketch sketch = new Sketch();
+		WallSketch wall = new WallSketch();
+		int next = 0;
+		for (int i = 0; i < CHECK_OPS; i++) {
+			String msg;
+			int kind = random.nextInt(10);
+			if (i % 5000 == 0) {
+				// one big enough to be listed apart from the tiles
+				msg = "add rectangle -100 -100 " + (CANVAS - 100) + " " + (CANVAS - 100) + " " + random.nextInt(1 << 24) + " " + next++;
+			}
+			else if (kind < 5) {
+				msg = randomAdd(random, next++);
+			}
+			else if (kind < 7) {
+				msg = "delete " + random.nextInt(next + 1);
+			}
+			else if (kind < 9) {
+				msg = "move " + random.nextInt(next + 1) + " " + (random.nextInt(601) - 300) + " " + (random.nextInt(601) - 300);
+			}
+			else {
+				msg = "color " + random.nextInt(next + 1) + " " + random.nextInt(1 << 24);
+			}
+			if (sketch.handleMessage(msg) != wall.handleMessage(msg)) {
+				throw new RuntimeException("handled differently: " + msg);
+			}
+		}
+		sketch.publish();
+
+		if (sketch.size() != wall.size() || !sketch.toString().equals(wall.toString())) {
+			throw new RuntimeException("strings differ");
+		}
+		if (!messages(sketch.snapshot()).equals(messages(wall.snapshot()))) {
+			throw new RuntimeException("snapshots differ");
+		}
+		for (int i = 0; i < CHECK_PROBES; i++) {
+			int x = random.nextInt(CANVAS + 200) - 100, y = random.nextInt(CANVAS + 200) - 100;
+			if (sketch.shapeAt(x, y) != wall.shapeAt(x, y)) {
+				throw new RuntimeException("shapeAt differs at " + x + "," + y);
+			}
+		}
+		for (java.awt.Rectangle clip : new java.awt.Rectangle[] {null, new java.awt.Rectangle(1900, 1900, 300, 200), new java.awt.Rectangle(2500, 2000, 700, 900)}) {
+			if (!Arrays.equals(pixels(sketch, clip), pixels(wall, clip))) {
+				throw new RuntimeException("pixels differ with clip " + clip);
+			}
+		}
+		WallSketch reparsed = new WallSketch();
+		reparsed.parseSketch(sketch.toString());
+		if (!reparsed.toString().equals(sketch.toString())) {
+			throw new RuntimeException("reparse differs");
+		}
+		System.out.printf("%,d random ops: WallSketch and Sketch agree (%,d shapes)%n", CHECK_OPS, wall.size());
+	}
+
+	/**
+	 * Times shapeAt, then moves while another thread paints the whole world
+	 */
+	private static void time(int shapes, Random random) throws InterruptedException {
+		WallSketch wall = new WallSketch();
+		for (int id = 0; id < shapes; id++) {
+			wall.handleMessage(randomAdd(random, id));
+		}
+
+		// twice, so the first round is the warm-up
+		long nanos = 0;
+		for (int round = 0; round < 2; round++) {
+			int hits = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < TIMED_PROBES; i++) {
+				if (wall.shapeAt(random.nextInt(CANVAS), random.nextInt(CANVAS)) != -1) {
+					hits++;
+				}
+			}
+			nanos = System.nanoTime() - start;
+			sink = hits;
+		}
+		System.out.printf("%,d shapes: shapeAt %.1f us%n", shapes, nanos / 1e3 / TIMED_PROBES);
+
+		// the moves are made up front, so the timing is only handleMessage
+		String[] moves = new String[1024];
+		for (int i = 0; i < moves.length; i++) {
+			moves[i] = "move " + random.nextInt(shapes) + " 1 1";
+		}
+		Thread painter = new Thread(() -> {
+			Graphics2D g = new BufferedImage(CANVAS, CANVAS, BufferedImage.TYPE_INT_RGB).createGraphics();
+			for (int i = 0; i < PAINTS; i++) {
+				wall.draw(g);
+			}
+			g.dispose();
+		});
+		long[] waits = new long[1 << 24];
+		int n = 0;
+		painter.start();
+		while (painter.isAlive() && n < waits.length) {
+			long start = System.nanoTime();
+			wall.handleMessage(moves[n & (moves.length - 1)]);
+			waits[n++] = System.nanoTime() - start;
+		}
+		painter.join();
+		Arrays.sort(waits, 0, n);
+		System.out.printf("%,d moves during %d full paints: p50 %.1f us, p99.99 %.1f us, worst %.1f ms%n",
+				n, PAINTS, waits[n / 2] / 1e3, waits[(int) (n * 0.9999)] / 1e3, waits[n - 1] / 1e6);
+	}
+
+	/**
+	 * Adds that many shapes to one store, and reports the heap it keeps and the time spent in GC
+	 */
+	private static void heap(int shapes, boolean useWall) throws InterruptedException {
+		SketchStore store = useWall ? new WallSketch() : new Sketch();
+		Random random = new Random(1);
+		long gcMillis = gcMillis(), gcCount = gcCount();
+		long start = System.nanoTime();
+		for (int id = 0; id < shapes; id++) {
+			store.handleMessage(randomAdd(random, id));
+		}
+		long loadMillis = (System.nanoTime() - start) / 1_000_000;
+		gcMillis = gcMillis() - gcMillis;
+		gcCount = gcCount() - gcCount;
+
+		System.gc();
+		Thread.sleep(200);
+		System.gc();
+		long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		start = System.nanoTime();
+		System.gc();
+		long fullMillis = (System.nanoTime() - start) / 1_000_000;
+		long offHeap = useWall ? ((WallSketch) store).offHeapBytes() : 0;
+		Reference.reachabilityFence(store);
+
+		System.out.printf("%s, %,d shapes: heap %,d MB, off-heap %,d MB; adding took %,d ms with %d GCs totalling %,d ms; full GC %,d ms%n",
+				useWall ? "WallSketch" : "Sketch", shapes, heap >> 20, offHeap >> 20, loadMillis, gcCount, gcMillis, fullMillis);
+	}
+
+	/**
+	 * An add of a random shape, somewhere on the canvas
+	 */
+	private static String randomAdd(Random random, int id) {
+		int x = random.nextInt(CANVAS), y = random.nextInt(CANVAS);
+		int rgb = random.nextInt(1 << 24);
+		switch (random.nextInt(5)) {
+			case 0:
+				return "add ellipse " + x + " " + y + " " + (x + random.nextInt(40) - 20) + " " + (y + random.nextInt(40) - 20) + " " + rgb + " " + id;
+			case 1:
+				return "add rectangle " + x + " " + y + " " + (x + random.nextInt(40)) + " " + (y + random.nextInt(40)) + " " + rgb + " " + id;
+			case 2:
+				return "add segment " + x + " " + y + " " + (x + random.nextInt(40)) + " " + (y + random.nextInt(40)) + " " + rgb + " " + id;
+			case 3:
+				return "add triangle " + x + " " + (x + 30) + " " + y + " " + (random.nextInt(40) - 20) + " " + rgb + " " + id;
+			default:
+				StringBuilder msg = new StringBuilder("add polyline");
+				int joints = 2 + random.nextInt(6);
+				for (int i = 0; i < joints; i++) {
+					msg.append(' ').append(x + random.nextInt(30)).append(' ').append(y + random.nextInt(30));
+				}
+				return msg.append(' ').append(rgb).append(' ').append(id).toString();
+		}
+	}
+
+	/**
+	 * A 1200x1200 piece from the middle of the canvas, as the store draws it
+	 */
+	private static int[] pixels(SketchStore store, java.awt.Rectangle clip) {
+		BufferedImage image = new BufferedImage(1200, 1200, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.translate(-1800, -1800);
+		if (clip != null) {
+			g.setClip(clip);
+		}
+		store.draw(g);
+		g.dispose();
+		return image.getRGB(0, 0, 1200, 1200, null, 0, 1200);
+	}
+
+	private static ArrayList<String> messages(Snapshot snapshot) {
+		ArrayList<String> messages = new ArrayList<>();
+		for (String msg : snapshot) {
+			messages.add(msg);
+		}
+		return messages;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += gc.getCollectionTime();
+		}
+		return millis;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += gc.getCollectionCount();
+		}
+		return count;
+	}
+}